@@ -0,0 +1,37 @@
+package com.cavetale.itemmerchant;
+
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The string helpers used in every sale message and log line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    private final String name = Material.POLISHED_BLACKSTONE_BRICK_STAIRS.name();
+    private final double money = 1234.5678;
+
+    @Benchmark
+    public String niceEnum() {
+        return ItemMerchantPlugin.niceEnum(this.name);
+    }
+
+    @Benchmark
+    public String fmt() {
+        return ItemMerchantPlugin.fmt(this.money);
+    }
+}
@@ -0,0 +1,129 @@
+package com.cavetale.itemmerchant;
+
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning a full player inventory for the sell menu, and taking
+ * items out of it for a sale. The baseline methods reproduce the
+ * loops from before InventoryScan. Run with -prof gc to see the
+ * allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryScanBenchmark {
+    private static final Material[] MATERIALS = {
+        Material.COBBLESTONE, Material.DIRT, Material.COAL, Material.IRON_ORE,
+        Material.OAK_LOG, Material.WHEAT, Material.BONE, Material.DIAMOND_SWORD,
+    };
+    private ServerMock server;
+    private PlayerInventory inventory;
+    private ItemStack[] contents;
+    private final InventoryScan scan = new InventoryScan();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.server = MockBukkit.mock();
+        this.inventory = this.server.addPlayer().getInventory();
+        Random random = new Random(1);
+        this.contents = new ItemStack[36];
+        for (int i = 0; i < this.contents.length; i += 1) {
+            Material mat = MATERIALS[random.nextInt(MATERIALS.length)];
+            ItemStack item = new ItemStack(mat, 1 + random.nextInt(mat.getMaxStackSize()));
+            if (random.nextInt(8) == 0) {
+                ItemMeta meta = item.getItemMeta();
+                meta.setDisplayName("Named");
+                item.setItemMeta(meta);
+            }
+            this.contents[i] = item;
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        for (int i = 0; i < this.contents.length; i += 1) {
+            this.inventory.setItem(i, this.contents[i].clone());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MockBukkit.unmock();
+    }
+
+    @Benchmark
+    public int baselineMenuScan() {
+        Map<Material, int[]> items = new EnumMap<>(Material.class);
+        for (int menuIndex = 0; menuIndex < 4 * 9; menuIndex += 1) {
+            int playerIndex = menuIndex < 27 ? menuIndex + 9 : menuIndex - 27;
+            ItemStack item = this.inventory.getItem(playerIndex);
+            if (item == null) continue;
+            Material mat = item.getType();
+            if (mat == Material.AIR) continue;
+            if (!item.isSimilar(new ItemStack(mat))) continue;
+            int[] cache = items.get(mat);
+            if (cache != null) {
+                cache[1] += item.getAmount();
+            } else {
+                items.put(mat, new int[] {menuIndex, item.getAmount()});
+            }
+        }
+        return items.size();
+    }
+
+    @Benchmark
+    public int inventoryScan() {
+        this.scan.scan(this.inventory);
+        return this.scan.getGroupCount();
+    }
+
+    @Benchmark
+    public int baselineSale() {
+        Material mat = Material.COBBLESTONE;
+        int itemsRemain = 100;
+        ItemStack proto = new ItemStack(mat);
+        for (int i = 4 * 9 - 1; i >= 0 && itemsRemain > 0; i -= 1) {
+            int playerIndex = i < 27 ? i + 9 : i - 27;
+            ItemStack item = this.inventory.getItem(playerIndex);
+            if (item == null || item.getType() != mat) continue;
+            if (!item.isSimilar(proto)) continue;
+            int itemAmount = item.getAmount();
+            int sold = Math.min(itemAmount, itemsRemain);
+            item.setAmount(itemAmount - sold);
+            itemsRemain -= sold;
+        }
+        return 100 - itemsRemain;
+    }
+
+    @Benchmark
+    public int scanAndTake() {
+        this.scan.scan(this.inventory);
+        int group = this.scan.getGroup(Material.COBBLESTONE);
+        if (group < 0) return 0;
+        return this.scan.take(this.inventory, group, 100);
+    }
+}
@@ -0,0 +1,274 @@
+package com.cavetale.itemmerchant;
+
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import be.seeseemelk.mockbukkit.entity.PlayerMock;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.bukkit.Material;
+import org.bukkit.event.inventory.ClickType;
+import org.bukkit.event.inventory.InventoryAction;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryType.SlotType;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryView;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Simulated load of many players selling at once. The real plugin is
+ * enabled on a MockBukkit server. Its MySQL connections are answered
+ * by an in-memory H2 database in MySQL mode, through a driver which
+ * counts every statement executed.
+ *
+ * Every tick, each simulated player may open the sell menu, click a
+ * slot, shift click the sell all button, or close the menu. The
+ * report shows the main thread time per tick spent in player actions
+ * and scheduled tasks, the bytes allocated by the main thread per
+ * tick, and the number of database statements.
+ *
+ * Usage: java -cp target/benchmarks.jar com.cavetale.itemmerchant.LoadTest [players] [ticks] [seed]
+ */
+public final class LoadTest {
+    private static final Material[] MATERIALS = {
+        Material.COBBLESTONE, Material.DIRT, Material.COAL, Material.IRON_INGOT,
+        Material.OAK_LOG, Material.WHEAT, Material.BONE, Material.ROTTEN_FLESH,
+        Material.STRING, Material.GUNPOWDER, Material.SAND, Material.GRAVEL,
+    };
+    private static final AtomicLong STATEMENTS = new AtomicLong();
+    private final int playerCount;
+    private final int ticks;
+    private final Random random;
+    private ServerMock server;
+    private ItemMerchantPlugin plugin;
+    private final List<PlayerMock> players = new ArrayList<>();
+
+    private LoadTest(final int playerCount, final int ticks, final long seed) {
+        this.playerCount = playerCount;
+        this.ticks = ticks;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int playerCount = args.length >= 1 ? Integer.parseInt(args[0]) : 200;
+        int ticks = args.length >= 2 ? Integer.parseInt(args[1]) : 1200;
+        long seed = args.length >= 3 ? Long.parseLong(args[2]) : 1L;
+        installDriver();
+        LoadTest loadTest = new LoadTest(playerCount, ticks, seed);
+        try {
+            loadTest.setup();
+            loadTest.run();
+        } finally {
+            MockBukkit.unmock();
+        }
+    }
+
+    private void setup() throws InterruptedException {
+        this.server = MockBukkit.mock();
+        this.plugin = MockBukkit.load(ItemMerchantPlugin.class);
+        long timeout = System.currentTimeMillis() + 30000L;
+        while (!this.plugin.isPricesLoaded()) {
+            if (System.currentTimeMillis() > timeout) throw new IllegalStateException("Prices did not load");
+            this.server.getScheduler().performOneTick();
+            Thread.sleep(10L);
+        }
+        for (int i = 0; i < MATERIALS.length; i += 1) {
+            this.plugin.setMaterialPrice(MATERIALS[i], 0.25 * (double) (i + 1));
+        }
+        for (int i = 0; i < this.playerCount; i += 1) {
+            PlayerMock player = this.server.addPlayer();
+            player.setOp(true);
+            fill(player);
+            this.players.add(player);
+        }
+        this.server.getScheduler().waitAsyncTasksFinished();
+        this.plugin.getMetrics().reset();
+        STATEMENTS.set(0L);
+    }
+
+    private void fill(PlayerMock player) {
+        Inventory inv = player.getInventory();
+        for (int slot = 0; slot < 36; slot += 1) {
+            Material mat = MATERIALS[this.random.nextInt(MATERIALS.length)];
+            inv.setItem(slot, new ItemStack(mat, 1 + this.random.nextInt(mat.getMaxStackSize())));
+        }
+    }
+
+    private void run() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long[] tickNanos = new long[this.ticks];
+        long allocated = 0L;
+        long actions = 0L;
+        for (int tick = 0; tick < this.ticks; tick += 1) {
+            // Refills are not part of the measurement
+            for (PlayerMock player : this.players) {
+                if (player.getInventory().firstEmpty() >= 0 && this.random.nextInt(200) == 0) fill(player);
+            }
+            long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (PlayerMock player : this.players) {
+                if (act(player)) actions += 1;
+            }
+            this.server.getScheduler().performOneTick();
+            tickNanos[tick] = System.nanoTime() - start;
+            allocated += threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+        }
+        for (PlayerMock player : this.players) player.closeInventory();
+        this.server.getScheduler().performOneTick();
+        this.server.getScheduler().waitAsyncTasksFinished();
+        report(tickNanos, allocated, actions);
+    }
+
+    /**
+     * One random action of one player.
+     * @return true if anything was done
+     */
+    private boolean act(PlayerMock player) {
+        InventoryView view = player.getOpenInventory();
+        boolean open = view.getTopInventory().getHolder() instanceof ChestMenu;
+        int roll = this.random.nextInt(100);
+        if (!open) {
+            if (roll >= 5) return false;
+            player.performCommand("sell");
+            return true;
+        }
+        if (roll < 2) {
+            player.closeInventory();
+            return true;
+        }
+        if (roll < 3) {
+            click(view, SellMenu.SELL_ALL_SLOT, ClickType.SHIFT_LEFT);
+            return true;
+        }
+        if (roll >= 40) return false;
+        Inventory top = view.getTopInventory();
+        for (int i = 0; i < 4; i += 1) {
+            int slot = this.random.nextInt(SellMenu.SIZE);
+            if (top.getItem(slot) == null) continue;
+            ClickType[] types = {ClickType.LEFT, ClickType.RIGHT, ClickType.SHIFT_LEFT};
+            click(view, slot, types[this.random.nextInt(types.length)]);
+            return true;
+        }
+        return false;
+    }
+
+    private void click(InventoryView view, int slot, ClickType type) {
+        InventoryAction action = type.isShiftClick() ? InventoryAction.MOVE_TO_OTHER_INVENTORY : InventoryAction.PICKUP_ONE;
+        this.server.getPluginManager().callEvent(new InventoryClickEvent(view, SlotType.CONTAINER, slot, type, action));
+    }
+
+    private void report(long[] tickNanos, long allocated, long actions) {
+        long[] sorted = tickNanos.clone();
+        Arrays.sort(sorted);
+        long total = 0L;
+        for (long nanos : sorted) total += nanos;
+        double seconds = (double) this.ticks / 20.0;
+        System.out.println("Players: " + this.playerCount + ", ticks: " + this.ticks + ", actions: " + actions);
+        System.out.println(String.format("Tick time ms: avg %.3f p50 %.3f p99 %.3f max %.3f",
+                                         millis(total / sorted.length),
+                                         millis(sorted[sorted.length / 2]),
+                                         millis(sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))]),
+                                         millis(sorted[sorted.length - 1])));
+        System.out.println(String.format("Allocated per tick: %.1f KiB", (double) allocated / (double) this.ticks / 1024.0));
+        System.out.println(String.format("DB statements: %d (%.1f per second)",
+                                         STATEMENTS.get(), (double) STATEMENTS.get() / seconds));
+        this.plugin.getMetrics().getStats(this.plugin.getLogQueue().getDepth()).forEach(System.out::println);
+    }
+
+    private static double millis(long nanos) {
+        return (double) nanos / 1000000.0;
+    }
+
+    // Database
+
+    /**
+     * Replace any MySQL driver with one which opens the shared H2
+     * database and counts statements.
+     */
+    private static void installDriver() throws SQLException {
+        for (Driver driver : Collections.list(DriverManager.getDrivers())) {
+            if (driver.acceptsURL("jdbc:mysql://localhost/")) DriverManager.deregisterDriver(driver);
+        }
+        DriverManager.registerDriver(new CountingDriver());
+    }
+
+    static final class CountingDriver implements Driver {
+        static final String H2_URL = "jdbc:h2:mem:loadtest;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) return null;
+            return counting(Connection.class, DriverManager.getConnection(H2_URL));
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:mysql:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() {
+            return Logger.getLogger("LoadTest");
+        }
+    }
+
+    /**
+     * Wrap a connection or statement. Statements created by a
+     * wrapped connection are wrapped too, and every execute call is
+     * counted.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T counting(Class<T> type, T target) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (target instanceof Statement && method.getName().startsWith("execute")) STATEMENTS.incrementAndGet();
+            final Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException ite) {
+                throw ite.getCause();
+            }
+            Class<?> returnType = method.getReturnType();
+            if (result != null && returnType.isInterface() && Statement.class.isAssignableFrom(returnType)) {
+                return counting((Class<Object>) returnType, result);
+            }
+            return result;
+        };
+        return (T) Proxy.newProxyInstance(LoadTest.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+}
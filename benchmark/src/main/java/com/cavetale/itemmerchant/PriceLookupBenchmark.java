@@ -0,0 +1,66 @@
+package com.cavetale.itemmerchant;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Price lookup: the old EnumMap of boxed prices against PriceTable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriceLookupBenchmark {
+    private Map<Material, Double> enumMap;
+    private PriceTable priceTable;
+    private Material[] lookups;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        this.enumMap = new EnumMap<>(Material.class);
+        for (Material mat : Material.values()) {
+            if (random.nextInt(3) == 0) this.enumMap.put(mat, (double) random.nextInt(10000) / 100.0);
+        }
+        this.priceTable = PriceTable.of(this.enumMap);
+        this.lookups = new Material[1024];
+        for (int i = 0; i < this.lookups.length; i += 1) {
+            this.lookups[i] = PriceTable.MATERIALS[random.nextInt(PriceTable.MATERIALS.length)];
+        }
+    }
+
+    @Benchmark
+    public double enumMap() {
+        double sum = 0;
+        for (Material mat : this.lookups) {
+            Double price = this.enumMap.get(mat);
+            sum += price != null ? price : 0;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double priceTable() {
+        PriceTable table = this.priceTable;
+        double sum = 0;
+        for (Material mat : this.lookups) {
+            sum += table.get(mat);
+        }
+        return sum;
+    }
+}
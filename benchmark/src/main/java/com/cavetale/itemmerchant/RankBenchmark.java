@@ -0,0 +1,142 @@
+package com.cavetale.itemmerchant;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ranking items sold in the last week: the old in-memory
+ * aggregation over loaded rows, the GROUP BY query against an
+ * in-memory H2 database, and the hourly sales window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RankBenchmark {
+    static final long DAY = 24L * 60L * 60L * 1000L;
+    @Param({"10000", "100000"})
+    public int rows;
+    private List<SQLLog> logs;
+    private Connection connection;
+    private SalesWindow salesWindow;
+    private RankQuery query;
+
+    @Setup
+    public void setup() throws SQLException {
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        UUID[] players = new UUID[200];
+        for (int i = 0; i < players.length; i += 1) players[i] = new UUID(random.nextLong(), random.nextLong());
+        Material[] materials = new Material[300];
+        for (int i = 0; i < materials.length; i += 1) {
+            materials[i] = PriceTable.MATERIALS[random.nextInt(PriceTable.MATERIALS.length)];
+        }
+        this.logs = new ArrayList<>(this.rows);
+        this.salesWindow = new SalesWindow(null, 30);
+        this.connection = DriverManager.getConnection("jdbc:h2:mem:rank;MODE=MySQL;DATABASE_TO_LOWER=TRUE");
+        try (Statement statement = this.connection.createStatement()) {
+            statement.execute("CREATE TABLE `logs` (`id` INT AUTO_INCREMENT PRIMARY KEY,"
+                              + " `player` VARCHAR(40) NOT NULL, `material` VARCHAR(64) NOT NULL,"
+                              + " `amount` INT NOT NULL, `price` DOUBLE NOT NULL, `time` DATETIME NOT NULL)");
+        }
+        try (PreparedStatement statement = this.connection
+             .prepareStatement("INSERT INTO `logs` (`player`, `material`, `amount`, `price`, `time`) VALUES (?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < this.rows; i += 1) {
+                UUID player = players[random.nextInt(players.length)];
+                Material mat = materials[random.nextInt(materials.length)];
+                int amount = 1 + random.nextInt(64);
+                double price = (double) amount * (1.0 + random.nextInt(100));
+                long time = now - (long) (random.nextDouble() * 30.0 * (double) DAY);
+                SQLLog log = new SQLLog(player, mat, amount, price);
+                log.setTime(new Date(time));
+                this.logs.add(log);
+                this.salesWindow.record(player, mat, amount, price, time);
+                statement.setString(1, player.toString());
+                statement.setString(2, log.getMaterial());
+                statement.setInt(3, amount);
+                statement.setDouble(4, price);
+                statement.setTimestamp(5, new Timestamp(time));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        this.salesWindow.seed(List.of());
+        this.query = new RankQuery(RankQuery.What.ITEMS);
+        this.query.setSince(new Date(now - 7L * DAY));
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        this.connection.close();
+    }
+
+    static final class SearchCache {
+        Material mat;
+        int amount;
+        double money;
+
+        SearchCache(final Material mat) {
+            this.mat = mat;
+        }
+    }
+
+    @Benchmark
+    public List<SearchCache> baselineLoadedRows() {
+        long since = this.query.getSince().getTime();
+        List<SQLLog> searchResult = this.logs.stream()
+            .filter(l -> l.getTime().getTime() > since)
+            .collect(Collectors.toList());
+        Map<Material, SearchCache> cache = new EnumMap<>(Material.class);
+        for (Material m : Material.values()) cache.put(m, new SearchCache(m));
+        for (SQLLog log : searchResult) {
+            Material mat = Material.valueOf(log.getMaterial().toUpperCase());
+            SearchCache sc = cache.get(mat);
+            sc.amount += log.getAmount();
+            sc.money += log.getPrice();
+        }
+        return cache.values().stream()
+            .filter(r -> r.money > 0 && r.amount > 0)
+            .sorted(Comparator.comparingDouble((SearchCache r) -> r.money).reversed())
+            .limit(RankQuery.PAGE_SIZE)
+            .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public RankQuery.Result groupByQuery() throws SQLException {
+        return this.query.fetch(this.connection, "logs");
+    }
+
+    @Benchmark
+    public RankQuery.Result salesWindow() {
+        return this.salesWindow.rank(this.query);
+    }
+}
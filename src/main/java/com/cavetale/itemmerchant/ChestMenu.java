@@ -1,7 +1,5 @@
 package com.cavetale.itemmerchant;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
 import java.util.function.Consumer;
 import lombok.Getter;
@@ -22,18 +20,23 @@ import org.bukkit.inventory.ItemStack;
 @Getter @Setter @RequiredArgsConstructor
 public final class ChestMenu implements InventoryHolder {
     private Inventory inventory;
-    private Map<Integer, Consumer<InventoryClickEvent>> clicks = new HashMap<>();
+    private Consumer<InventoryClickEvent>[] clicks;
+    private Consumer<InventoryCloseEvent> closeHandler;
+    /** Optional limit on clicks handled per player. */
+    private ClickLimiter clickLimiter;
     private boolean valid = true;
 
     // Setup
 
+    @SuppressWarnings("unchecked")
     public Inventory createInventory(int size, Component title) {
         this.inventory = Bukkit.getServer().createInventory(this, size, title);
+        this.clicks = (Consumer<InventoryClickEvent>[]) new Consumer[size];
         return this.inventory;
     }
 
     public void setClick(int slot, Consumer<InventoryClickEvent> callback) {
-        this.clicks.put(slot, callback);
+        this.clicks[slot] = callback;
     }
 
     public void setClick(int slot, ItemStack item, Consumer<InventoryClickEvent> callback) {
@@ -41,6 +44,11 @@ public final class ChestMenu implements InventoryHolder {
         setClick(slot, callback);
     }
 
+    public void clearSlot(int slot) {
+        Objects.requireNonNull(this.inventory, "inventory is null").setItem(slot, null);
+        this.clicks[slot] = null;
+    }
+
     public InventoryView open(Player player) {
         return player.openInventory(Objects.requireNonNull(this.inventory, "inventory is null"));
     }
@@ -52,7 +60,7 @@ public final class ChestMenu implements InventoryHolder {
     }
 
     public void onInventoryClose(InventoryCloseEvent event) {
-        return;
+        if (this.closeHandler != null) this.closeHandler.accept(event);
     }
 
     public void onInventoryClick(InventoryClickEvent event) {
@@ -61,8 +69,15 @@ public final class ChestMenu implements InventoryHolder {
         if (event.getClickedInventory() == null) return;
         if (!event.getClickedInventory().equals(this.inventory)) return;
         Objects.requireNonNull(this.inventory, "inventory is null");
-        Consumer<InventoryClickEvent> run = this.clicks.get(event.getSlot());
-        if (run != null) run.accept(event);
+        int slot = event.getSlot();
+        if (slot < 0 || slot >= this.clicks.length) return;
+        Consumer<InventoryClickEvent> run = this.clicks[slot];
+        if (run == null) return;
+        if (this.clickLimiter != null
+            && !this.clickLimiter.tryClick(event.getWhoClicked().getUniqueId(), slot, event.getClick())) {
+            return;
+        }
+        run.accept(event);
     }
 
     public void onInventoryDrag(InventoryDragEvent event) {
@@ -0,0 +1,76 @@
+package com.cavetale.itemmerchant;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.bukkit.event.inventory.ClickType;
+
+/**
+ * Per player token bucket for menu clicks. Every click costs one
+ * token; tokens refill at a fixed rate up to the burst size. A click
+ * on the same slot with the same click type within the debounce time
+ * is dropped without costing a token. Only accessed from the main
+ * thread.
+ */
+final class ClickLimiter {
+    private final Metrics metrics;
+    private final double tokensPerNano;
+    private final double burst;
+    private final long debounceNanos;
+    private final Map<UUID, Bucket> buckets = new HashMap<>();
+
+    static final class Bucket {
+        double tokens;
+        long refilled;
+        int lastSlot = -1;
+        ClickType lastType;
+        long lastClick;
+    }
+
+    /**
+     * @param rate clicks per second
+     * @param burst clicks allowed at once
+     * @param debounce milliseconds between identical clicks
+     */
+    ClickLimiter(final Metrics metrics, final double rate, final int burst, final long debounce) {
+        if (rate <= 0) throw new IllegalArgumentException("rate must be positive");
+        if (burst < 1) throw new IllegalArgumentException("burst must be positive");
+        this.metrics = metrics;
+        this.tokensPerNano = rate / 1000000000.0;
+        this.burst = (double) burst;
+        this.debounceNanos = Math.max(0L, debounce) * 1000000L;
+    }
+
+    /**
+     * @return true if the click may go through
+     */
+    boolean tryClick(UUID player, int slot, ClickType type) {
+        long now = System.nanoTime();
+        Bucket bucket = this.buckets.get(player);
+        if (bucket == null) {
+            bucket = new Bucket();
+            bucket.tokens = this.burst;
+            bucket.refilled = now;
+            this.buckets.put(player, bucket);
+        }
+        if (slot == bucket.lastSlot && type == bucket.lastType && now - bucket.lastClick < this.debounceNanos) {
+            this.metrics.clickDebounced();
+            return false;
+        }
+        bucket.tokens = Math.min(this.burst, bucket.tokens + (double) (now - bucket.refilled) * this.tokensPerNano);
+        bucket.refilled = now;
+        if (bucket.tokens < 1.0) {
+            this.metrics.clickThrottled();
+            return false;
+        }
+        bucket.tokens -= 1.0;
+        bucket.lastSlot = slot;
+        bucket.lastType = type;
+        bucket.lastClick = now;
+        return true;
+    }
+
+    void remove(UUID player) {
+        this.buckets.remove(player);
+    }
+}
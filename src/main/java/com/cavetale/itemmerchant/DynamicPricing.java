@@ -0,0 +1,101 @@
+package com.cavetale.itemmerchant;
+
+import java.util.Arrays;
+import lombok.Getter;
+import org.bukkit.Material;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Optional supply and demand pricing. Every sale adds to an
+ * exponentially decaying sales volume per material, and the price
+ * drops as the volume grows:
+ *
+ *   factor = max(minFactor, 1 / (1 + volume / referenceVolume))
+ *
+ * Sales are recorded in O(1) on the main thread. Periodically the
+ * volumes and the base prices are copied, and an async task computes
+ * the adjusted table. It is published back on the main thread unless
+ * a newer update was started meanwhile.
+ */
+final class DynamicPricing {
+    private final ItemMerchantPlugin plugin;
+    private final double halfLife;
+    private final double referenceVolume;
+    private final double minFactor;
+    private final long updateInterval;
+    // Main thread only
+    private final double[] volumes = new double[PriceTable.MATERIALS.length];
+    private final long[] updated = new long[PriceTable.MATERIALS.length];
+    private BukkitTask task;
+    /** Number of the latest update started. */
+    private long sequence;
+    /** The adjusted prices, or null before the first update. */
+    @Getter private volatile PriceTable prices;
+
+    DynamicPricing(final ItemMerchantPlugin plugin, final double halfLifeHours, final double referenceVolume,
+                   final double minFactor, final long updateInterval) {
+        if (halfLifeHours <= 0) throw new IllegalArgumentException("halfLife must be positive");
+        if (referenceVolume <= 0) throw new IllegalArgumentException("referenceVolume must be positive");
+        if (minFactor < 0 || minFactor > 1) throw new IllegalArgumentException("minFactor must be in [0, 1]");
+        if (updateInterval < 1) throw new IllegalArgumentException("updateInterval must be positive");
+        this.plugin = plugin;
+        this.halfLife = halfLifeHours * 60.0 * 60.0 * 1000.0;
+        this.referenceVolume = referenceVolume;
+        this.minFactor = minFactor;
+        this.updateInterval = updateInterval;
+    }
+
+    void enable() {
+        this.task = this.plugin.getServer().getScheduler()
+            .runTaskTimer(this.plugin, this::update, 0L, this.updateInterval);
+    }
+
+    void disable() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    private double decay(int ordinal, long now) {
+        long elapsed = now - this.updated[ordinal];
+        if (elapsed <= 0) return this.volumes[ordinal];
+        return this.volumes[ordinal] * Math.pow(0.5, (double) elapsed / this.halfLife);
+    }
+
+    void record(Material mat, int amount, long now) {
+        int ordinal = mat.ordinal();
+        this.volumes[ordinal] = decay(ordinal, now) + (double) amount;
+        this.updated[ordinal] = now;
+    }
+
+    double getVolume(Material mat) {
+        return decay(mat.ordinal(), System.currentTimeMillis());
+    }
+
+    /**
+     * Copy the volumes and base prices on the main thread and hand
+     * them to an async task which computes the adjusted price table.
+     */
+    void update() {
+        final long now = System.currentTimeMillis();
+        final double[] volumeCopy = Arrays.copyOf(this.volumes, this.volumes.length);
+        final long[] updatedCopy = Arrays.copyOf(this.updated, this.updated.length);
+        final PriceTable base = this.plugin.getPriceTable();
+        final long number = ++this.sequence;
+        this.plugin.runAsync(() -> {
+                double[] factors = new double[volumeCopy.length];
+                for (int i = 0; i < factors.length; i += 1) {
+                    long elapsed = Math.max(0L, now - updatedCopy[i]);
+                    double volume = volumeCopy[i] * Math.pow(0.5, (double) elapsed / this.halfLife);
+                    factors[i] = Math.max(this.minFactor, 1.0 / (1.0 + volume / this.referenceVolume));
+                }
+                final PriceTable result = base.scaled(factors);
+                this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                        if (number != this.sequence || this.task == null) return;
+                        this.prices = result;
+                        this.plugin.onPricesChanged();
+                    });
+            });
+    }
+}
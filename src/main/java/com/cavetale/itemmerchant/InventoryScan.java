@@ -0,0 +1,222 @@
+package com.cavetale.itemmerchant;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+import org.bukkit.Material;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * One pass over the 36 storage slots of a player inventory, grouping
+ * plain (meta-free) stacks by material and priced custom items by
+ * ItemFingerprint. Slots are numbered in menu
+ * order: the three main rows first, then the hotbar. Every group
+ * keeps a chain of its slots so that a sale can visit exactly those
+ * slots. Instances are reused between scans and are main thread
+ * only. The static helpers are safe on any thread.
+ */
+final class InventoryScan {
+    static final int SIZE = 4 * 9;
+    /** One plain stack per item material, filled once on class load. */
+    private static final ItemStack[] PROTOTYPES = new ItemStack[PriceTable.MATERIALS.length];
+    /** Material ordinal to group index plus one. Zero means none. */
+    private final int[] groupIndex = new int[PriceTable.MATERIALS.length];
+    /** Fingerprint to group index, for custom items. */
+    private final Map<Long, Integer> customIndex = new HashMap<>();
+    private final Material[] groupMaterials = new Material[SIZE];
+    /** ItemFingerprint.NONE for plain groups. */
+    private final long[] groupFingerprints = new long[SIZE];
+    /** One item of each custom group, for icons and events. */
+    private final ItemStack[] groupSamples = new ItemStack[SIZE];
+    private final int[] groupFirst = new int[SIZE];
+    private final int[] groupLast = new int[SIZE];
+    private final int[] groupAmounts = new int[SIZE];
+    private final int[] slotPrev = new int[SIZE];
+    @Getter private int groupCount;
+
+    static {
+        for (Material mat : PriceTable.MATERIALS) {
+            if (mat.isItem() && !mat.isLegacy()) PROTOTYPES[mat.ordinal()] = new ItemStack(mat);
+        }
+    }
+
+    static int toPlayerIndex(int menuIndex) {
+        return menuIndex < 27 ? menuIndex + 9 : menuIndex - 27;
+    }
+
+    /**
+     * A plain stack of one material, to compare items against. Never
+     * modify the result.
+     */
+    static ItemStack prototype(Material mat) {
+        ItemStack result = PROTOTYPES[mat.ordinal()];
+        return result != null ? result : new ItemStack(mat);
+    }
+
+    /**
+     * True if the merchant buys this item as the plain material.
+     */
+    static boolean isPlain(ItemStack item) {
+        return item.isSimilar(prototype(item.getType()));
+    }
+
+    /**
+     * The fingerprint of an item if the merchant buys it as a priced
+     * custom item.
+     * @return the fingerprint, or ItemFingerprint.NONE
+     */
+    static long getPricedFingerprint(ItemStack item, ItemPrices itemPrices) {
+        if (!itemPrices.hasMaterial(item.getType()) || !item.hasItemMeta()) return ItemFingerprint.NONE;
+        long fingerprint = ItemFingerprint.of(item);
+        if (fingerprint == ItemFingerprint.NONE || itemPrices.get(fingerprint) == null) return ItemFingerprint.NONE;
+        return fingerprint;
+    }
+
+    void scan(Inventory inv) {
+        scan(inv, ItemPrices.EMPTY);
+    }
+
+    /**
+     * Scan plain items, and custom items with a price in itemPrices.
+     * Fingerprints are only computed for items with meta whose
+     * material has a custom price, and not again for an item with the
+     * same meta as the sample of a custom group found before.
+     */
+    void scan(Inventory inv, ItemPrices itemPrices) {
+        for (int g = 0; g < this.groupCount; g += 1) {
+            if (this.groupFingerprints[g] == ItemFingerprint.NONE) {
+                this.groupIndex[this.groupMaterials[g].ordinal()] = 0;
+            }
+            this.groupSamples[g] = null;
+        }
+        this.customIndex.clear();
+        this.groupCount = 0;
+        ItemStack[] contents = inv.getStorageContents();
+        for (int slot = 0; slot < SIZE; slot += 1) {
+            ItemStack item = contents[toPlayerIndex(slot)];
+            if (item == null) continue;
+            Material mat = item.getType();
+            if (mat == Material.AIR) continue;
+            int g;
+            if (isPlain(item)) {
+                g = this.groupIndex[mat.ordinal()] - 1;
+                if (g < 0) {
+                    g = newGroup(slot, mat, ItemFingerprint.NONE);
+                    this.groupIndex[mat.ordinal()] = g + 1;
+                }
+            } else if (itemPrices.hasMaterial(mat) && item.hasItemMeta()) {
+                g = findSimilarGroup(item);
+                if (g < 0) {
+                    long fingerprint = getPricedFingerprint(item, itemPrices);
+                    if (fingerprint == ItemFingerprint.NONE) continue;
+                    Integer index = this.customIndex.get(fingerprint);
+                    if (index != null) {
+                        g = index;
+                    } else {
+                        g = newGroup(slot, mat, fingerprint);
+                        this.groupSamples[g] = item.asOne();
+                        this.customIndex.put(fingerprint, g);
+                    }
+                }
+            } else {
+                continue;
+            }
+            if (this.groupFirst[g] != slot) this.slotPrev[slot] = this.groupLast[g];
+            this.groupLast[g] = slot;
+            this.groupAmounts[g] += item.getAmount();
+        }
+    }
+
+    /**
+     * Find a custom group whose sample has the same meta as an item.
+     * Comparing meta is cheaper than a fingerprint, and there are
+     * only a few custom groups.
+     * @return the group index, or -1
+     */
+    private int findSimilarGroup(ItemStack item) {
+        for (int g = 0; g < this.groupCount; g += 1) {
+            ItemStack sample = this.groupSamples[g];
+            if (sample != null && sample.getType() == item.getType() && sample.isSimilar(item)) return g;
+        }
+        return -1;
+    }
+
+    private int newGroup(int slot, Material mat, long fingerprint) {
+        int g = this.groupCount++;
+        this.groupMaterials[g] = mat;
+        this.groupFingerprints[g] = fingerprint;
+        this.groupFirst[g] = slot;
+        this.groupAmounts[g] = 0;
+        this.slotPrev[slot] = -1;
+        return g;
+    }
+
+    /**
+     * @return the group index, or -1
+     */
+    int getGroup(Material mat) {
+        return this.groupIndex[mat.ordinal()] - 1;
+    }
+
+    /**
+     * @return the group index of a custom item, or -1
+     */
+    int getGroup(long fingerprint) {
+        Integer index = this.customIndex.get(fingerprint);
+        return index != null ? index : -1;
+    }
+
+    long getFingerprint(int group) {
+        return this.groupFingerprints[group];
+    }
+
+    /**
+     * @return a single item of a custom group, or null
+     */
+    ItemStack getSample(int group) {
+        return this.groupSamples[group];
+    }
+
+    Material getMaterial(int group) {
+        return this.groupMaterials[group];
+    }
+
+    int getAmount(int group) {
+        return this.groupAmounts[group];
+    }
+
+    int getFirstSlot(int group) {
+        return this.groupFirst[group];
+    }
+
+    /**
+     * Remove up to amount items of one group from the inventory,
+     * starting with the last slot. Only slots found by the last scan
+     * are visited, and each is checked again in case it changed.
+     * @return the number of items removed
+     */
+    int take(Inventory inv, int group, int amount) {
+        Material mat = this.groupMaterials[group];
+        long fingerprint = this.groupFingerprints[group];
+        ItemStack proto = prototype(mat);
+        ItemStack sample = this.groupSamples[group];
+        int itemsRemain = amount;
+        for (int slot = this.groupLast[group]; slot >= 0 && itemsRemain > 0; slot = this.slotPrev[slot]) {
+            ItemStack item = inv.getItem(toPlayerIndex(slot));
+            if (item == null || item.getType() != mat) continue;
+            if (fingerprint == ItemFingerprint.NONE
+                ? !item.isSimilar(proto)
+                : !item.isSimilar(sample) && ItemFingerprint.of(item) != fingerprint) {
+                continue;
+            }
+            int itemAmount = item.getAmount();
+            int sold = Math.min(itemAmount, itemsRemain);
+            item.setAmount(itemAmount - sold);
+            itemsRemain -= sold;
+        }
+        int taken = amount - itemsRemain;
+        this.groupAmounts[group] = Math.max(0, this.groupAmounts[group] - taken);
+        return taken;
+    }
+}
@@ -0,0 +1,104 @@
+package com.cavetale.itemmerchant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.bukkit.NamespacedKey;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+
+/**
+ * A stable 64 bit FNV-1a hash of what makes an item custom: its
+ * material, custom model data and persistent data, keys and values,
+ * nested containers included. Display name, lore, damage and
+ * enchantments are ignored. The hash is the same across restarts, so
+ * it can be stored in the database.
+ */
+final class ItemFingerprint {
+    /** Items without custom model data or persistent data. */
+    static final long NONE = 0L;
+    private static final long OFFSET = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private ItemFingerprint() { }
+
+    static long of(ItemStack item) {
+        if (item == null || !item.hasItemMeta()) return NONE;
+        ItemMeta meta = item.getItemMeta();
+        boolean custom = false;
+        long hash = mix(OFFSET, item.getType().name());
+        if (meta.hasCustomModelData()) {
+            custom = true;
+            hash = mix(hash, "#" + meta.getCustomModelData());
+        }
+        PersistentDataContainer pdc = meta.getPersistentDataContainer();
+        if (!pdc.isEmpty()) {
+            custom = true;
+            hash = mix(hash, pdc);
+        }
+        if (!custom) return NONE;
+        return hash != NONE ? hash : 1L;
+    }
+
+    /**
+     * Mix in every key and value in key order. String values are
+     * mixed in as they are, other types with a type prefix.
+     */
+    private static long mix(long hash, PersistentDataContainer pdc) {
+        List<NamespacedKey> keys = new ArrayList<>(pdc.getKeys());
+        keys.sort((a, b) -> a.toString().compareTo(b.toString()));
+        for (NamespacedKey key : keys) {
+            hash = mix(hash, key.toString());
+            if (pdc.has(key, PersistentDataType.STRING)) {
+                hash = mix(hash, pdc.get(key, PersistentDataType.STRING));
+            } else if (pdc.has(key, PersistentDataType.INTEGER)) {
+                hash = mix(hash, "i:" + pdc.get(key, PersistentDataType.INTEGER));
+            } else if (pdc.has(key, PersistentDataType.LONG)) {
+                hash = mix(hash, "l:" + pdc.get(key, PersistentDataType.LONG));
+            } else if (pdc.has(key, PersistentDataType.BYTE)) {
+                hash = mix(hash, "b:" + pdc.get(key, PersistentDataType.BYTE));
+            } else if (pdc.has(key, PersistentDataType.SHORT)) {
+                hash = mix(hash, "s:" + pdc.get(key, PersistentDataType.SHORT));
+            } else if (pdc.has(key, PersistentDataType.DOUBLE)) {
+                hash = mix(hash, "d:" + pdc.get(key, PersistentDataType.DOUBLE));
+            } else if (pdc.has(key, PersistentDataType.FLOAT)) {
+                hash = mix(hash, "f:" + pdc.get(key, PersistentDataType.FLOAT));
+            } else if (pdc.has(key, PersistentDataType.BYTE_ARRAY)) {
+                hash = mix(hash, "B:" + Arrays.toString(pdc.get(key, PersistentDataType.BYTE_ARRAY)));
+            } else if (pdc.has(key, PersistentDataType.INTEGER_ARRAY)) {
+                hash = mix(hash, "I:" + Arrays.toString(pdc.get(key, PersistentDataType.INTEGER_ARRAY)));
+            } else if (pdc.has(key, PersistentDataType.LONG_ARRAY)) {
+                hash = mix(hash, "L:" + Arrays.toString(pdc.get(key, PersistentDataType.LONG_ARRAY)));
+            } else if (pdc.has(key, PersistentDataType.TAG_CONTAINER)) {
+                hash = mix(hash, "{");
+                hash = mix(hash, pdc.get(key, PersistentDataType.TAG_CONTAINER));
+                hash = mix(hash, "}");
+            } else if (pdc.has(key, PersistentDataType.TAG_CONTAINER_ARRAY)) {
+                hash = mix(hash, "[");
+                for (PersistentDataContainer element : pdc.get(key, PersistentDataType.TAG_CONTAINER_ARRAY)) {
+                    hash = mix(hash, "{");
+                    hash = mix(hash, element);
+                    hash = mix(hash, "}");
+                }
+                hash = mix(hash, "]");
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        for (int i = 0; i < value.length(); i += 1) {
+            hash ^= value.charAt(i);
+            hash *= PRIME;
+        }
+        hash ^= 0xff; // Separator, so "ab"+"c" differs from "a"+"bc"
+        hash *= PRIME;
+        return hash;
+    }
+
+    static String toString(long fingerprint) {
+        return String.format("%016x", fingerprint);
+    }
+}
@@ -2,29 +2,31 @@ package com.cavetale.itemmerchant;
 
 import com.winthier.playercache.PlayerCache;
 import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import lombok.RequiredArgsConstructor;
-import lombok.val;
 import org.bukkit.Material;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
 import static net.kyori.adventure.text.Component.text;
 import static net.kyori.adventure.text.format.NamedTextColor.*;
 
 @RequiredArgsConstructor
 final class ItemMerchantCommand implements TabExecutor {
     private final ItemMerchantPlugin plugin;
-    private static final List<String> COMMANDS = Arrays.asList("get", "set", "list", "rank", "import", "export");
+    private static final List<String> COMMANDS = Arrays.asList("get", "set", "getitem", "setitem", "list", "rank",
+                                                                     "import", "export", "export-logs", "queue", "stats");
 
     static class CommandException extends Exception {
         CommandException(final String msg) {
@@ -43,25 +45,11 @@ final class ItemMerchantCommand implements TabExecutor {
         }
     }
 
-    final class SearchCache {
-        UUID uuid = null;
-        Material mat = null;
-        int amount = 0;
-        double money = 0;
-
-        SearchCache(final UUID uuid) {
-            this.uuid = uuid;
-        }
-
-        SearchCache(final Material mat) {
-            this.mat = mat;
-        }
-    }
-
     private boolean onCommand(CommandSender sender, String cmd, String[] args) throws CommandException {
         switch (cmd) {
         case "set": {
             if (args.length != 2) return false;
+            expectPricesLoaded();
             Material mat = expectMaterial(args[0]);
             double price = expectPrice(args[1]);
             this.plugin.setMaterialPrice(mat, price);
@@ -74,133 +62,193 @@ final class ItemMerchantCommand implements TabExecutor {
             Material mat = expectMaterial(args[0]);
             sender.sendMessage("Price of " + this.plugin.niceEnum(mat.name())
                                + " is " + this.plugin.fmt(this.plugin.getMaterialPrice(mat)) + ".");
+            DynamicPricing dynamic = this.plugin.getDynamicPricing();
+            if (dynamic != null) {
+                sender.sendMessage("Current sale price is " + this.plugin.fmt(this.plugin.getSalePrices().get(mat))
+                                   + " after a sales volume of " + this.plugin.fmt(dynamic.getVolume(mat)) + ".");
+            }
             return true;
         }
-        case "list": {
-            if (args.length != 1) return false;
-            String pat = args[0].toUpperCase();
-            long count = Arrays
-                .stream(Material.values())
-                .filter(s -> s.name().contains(pat))
-                .peek(mat -> {
-                        sender.sendMessage("" + mat + ": "
-                                           + this.plugin.fmt(this.plugin.getMaterialPrice(mat)));
-                    }).count();
-            sender.sendMessage("Total " + count + " items.");
+        case "setitem": {
+            if (args.length != 2) return false;
+            expectPricesLoaded();
+            ItemStack item = expectItemInHand(sender);
+            long fingerprint = expectFingerprint(item);
+            String name = args[0].toLowerCase();
+            if (name.length() > 64 || !name.matches("[a-z0-9]+([_.:-][a-z0-9]+)*")) throw new CommandException("Invalid name: " + name);
+            if (Material.getMaterial(name.toUpperCase()) != null) {
+                throw new CommandException("Name is taken by a material: " + name);
+            }
+            for (ItemPrices.Entry entry : this.plugin.getItemPrices().getEntries()) {
+                if (entry.name.equals(name) && entry.fingerprint != fingerprint) {
+                    throw new CommandException("Name is taken by another item: " + name);
+                }
+            }
+            double price = expectPrice(args[1]);
+            this.plugin.setItemPrice(fingerprint, name, item.getType(), price);
+            sender.sendMessage("Price of " + name + " (" + ItemFingerprint.toString(fingerprint) + ")"
+                               + " is now " + this.plugin.fmt(price) + ".");
             return true;
         }
-        case "rank": {
+        case "getitem": {
+            if (args.length != 0) return false;
+            long fingerprint = expectFingerprint(expectItemInHand(sender));
+            ItemPrices.Entry entry = this.plugin.getItemPrices().get(fingerprint);
+            if (entry == null) {
+                sender.sendMessage("Item " + ItemFingerprint.toString(fingerprint) + " has no price.");
+            } else {
+                sender.sendMessage("Price of " + entry.name + " (" + ItemFingerprint.toString(fingerprint) + ")"
+                                   + " is " + this.plugin.fmt(entry.price) + ".");
+            }
+            return true;
+        }
+        case "list": {
             if (args.length < 1) return false;
-            if (args.length % 2 != 1) return false;
-            val query = this.plugin.getSqlDatabase().find(SQLLog.class);
-            Iterator<String> iter = Arrays.asList(args).iterator();
-            String what = iter.next();
+            List<Material> matches = MaterialNames.get().search(args[0].equals("*") ? "" : args[0]);
+            PriceTable prices = this.plugin.getPriceTable();
+            double min = Double.NEGATIVE_INFINITY;
+            double max = Double.POSITIVE_INFINITY;
+            int page = 0;
+            Iterator<String> iter = Arrays.asList(args).subList(1, args.length).iterator();
             while (iter.hasNext()) {
                 String arg = iter.next();
                 switch (arg) {
-                case "days": {
-                    String n = iter.next();
-                    final int days;
-                    try {
-                        days = Integer.parseInt(n);
-                    } catch (NumberFormatException nfe) {
-                        throw new CommandException("Invalid days: " + n);
+                case "priced": min = Math.max(min, 0.01); break;
+                case "unpriced": max = Math.min(max, 0.0); break;
+                case "min": case "max": case "page": {
+                    if (!iter.hasNext()) throw new CommandException("Value expected: " + arg);
+                    String value = iter.next();
+                    if (arg.equals("min")) {
+                        min = expectPrice(value);
+                    } else if (arg.equals("max")) {
+                        max = expectPrice(value);
+                    } else {
+                        page = expectInt(value, "page") - 1;
+                        if (page < 0) throw new CommandException("Invalid page: " + value);
                     }
-                    query.gt("time", new Date(System.currentTimeMillis() - (long) days * 24 * 60 * 60 * 1000));
-                    break;
-                }
-                case "item": {
-                    Material mat = expectMaterial(iter.next());
-                    query.eq("material", mat.name().toLowerCase());
-                    break;
-                }
-                case "player": {
-                    String n = iter.next();
-                    UUID uuid = PlayerCache.uuidForName(n);
-                    if (uuid == null) throw new CommandException("Player not found: " + n);
-                    query.eq("player", uuid);
                     break;
                 }
                 default: throw new CommandException("Unknown filter: " + arg);
                 }
             }
-            List<SQLLog> searchResult = query.findList();
-            switch (what) {
-            case "items": {
-                Map<Material, SearchCache> cache = new EnumMap<>(Material.class);
-                Arrays.stream(Material.values()).forEach(m -> cache.put(m, new SearchCache(m)));
-                for (SQLLog log: searchResult) {
-                    Material mat;
+            List<Material> result = new ArrayList<>(matches.size());
+            for (Material mat : matches) {
+                double price = prices.get(mat);
+                if (price >= min && price <= max) result.add(mat);
+            }
+            int pageCount = (result.size() - 1) / RankQuery.PAGE_SIZE + 1;
+            int from = Math.min(result.size(), page * RankQuery.PAGE_SIZE);
+            int to = Math.min(result.size(), from + RankQuery.PAGE_SIZE);
+            StringBuilder sb = new StringBuilder("Total " + result.size() + " items, page " + (page + 1) + "/" + pageCount);
+            for (Material mat : result.subList(from, to)) {
+                sb.append("\n").append(mat.name().toLowerCase()).append(": ").append(this.plugin.fmt(prices.get(mat)));
+            }
+            sender.sendMessage(sb.toString());
+            return true;
+        }
+        case "rank": {
+            if (args.length < 1) return false;
+            if (args.length % 2 != 1) return false;
+            final RankQuery query;
+            switch (args[0]) {
+            case "items": query = new RankQuery(RankQuery.What.ITEMS); break;
+            case "players": query = new RankQuery(RankQuery.What.PLAYERS); break;
+            default: throw new CommandException("Invalid what: " + args[0]);
+            }
+            parseFilters(args, query, true);
+            RankQuery.Result cached = this.plugin.getSalesWindow().rank(query);
+            if (cached != null) {
+                sendRanking(sender, query, cached);
+                return true;
+            }
+            this.plugin.runAsync(() -> {
+                    final RankQuery.Result result;
+                    long start = System.nanoTime();
                     try {
-                        mat = Material.valueOf(log.getMaterial().toUpperCase());
-                    } catch (IllegalArgumentException iae) {
-                        iae.printStackTrace();
-                        continue;
+                        result = query.fetch(this.plugin.getSqlDatabase());
+                        this.plugin.getMetrics().time(Metrics.Timing.DB_QUERY, start);
+                    } catch (Exception e) {
+                        this.plugin.getLogger().warning("Rank query failed: " + e.getMessage());
+                        this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                                sender.sendMessage(text("Rank query failed. See console.", RED));
+                            });
+                        return;
                     }
-                    SearchCache sc = cache.get(mat);
-                    sc.amount += log.getAmount();
-                    sc.money += log.getPrice();
-                }
-                List<SearchCache> rankings = cache.values()
-                    .stream().filter(r -> r.money > 0 && r.amount > 0)
-                    .sorted((a, b) -> Double.compare(b.money, a.money))
-                    .collect(Collectors.toList());
-                sender.sendMessage("Total " + rankings.size() + " search results");
-                for (int i = 0; i < 20; i += 1) {
-                    if (i >= rankings.size()) break;
-                    SearchCache rank = rankings.get(i);
-                    if (rank.money == 0 && rank.amount == 0) break;
-                    sender.sendMessage("" + (i + 1) + ")"
-                                       + " x" + rank.amount
-                                       + " $" + this.plugin.fmt(rank.money)
-                                       + " " + this.plugin.niceEnum(rank.mat.name()));
-                }
-                break;
+                    this.plugin.getServer().getScheduler().runTask(this.plugin, () -> sendRanking(sender, query, result));
+                });
+            return true;
+        }
+        case "export-logs": {
+            if (args.length < 1) return false;
+            final LogExport.Format format;
+            switch (args[0]) {
+            case "csv": format = LogExport.Format.CSV; break;
+            case "ndjson": format = LogExport.Format.NDJSON; break;
+            default: throw new CommandException("Invalid format: " + args[0]);
             }
-            case "players": {
-                Map<UUID, SearchCache> cache = new HashMap<>();
-                for (SQLLog log: searchResult) {
-                    UUID uuid = log.getPlayer();
-                    SearchCache sc = cache.get(uuid);
-                    if (sc == null) {
-                        sc = new SearchCache(uuid);
-                        cache.put(uuid, sc);
-                    }
-                    sc.amount += log.getAmount();
-                    sc.money += log.getPrice();
-                }
-                List<SearchCache> rankings = cache.values()
-                    .stream().filter(r -> r.money > 0 && r.amount > 0)
-                    .sorted((a, b) -> Double.compare(b.money, a.money))
-                    .collect(Collectors.toList());
-                sender.sendMessage("Total " + rankings.size() + " search results");
-                for (int i = 0; i < 20; i += 1) {
-                    if (i >= rankings.size()) break;
-                    SearchCache rank = rankings.get(i);
-                    sender.sendMessage("" + (i + 1) + ")"
-                                       + " x" + rank.amount
-                                       + " $" + this.plugin.fmt(rank.money)
-                                       + " " + PlayerCache.nameForUuid(rank.uuid));
+            RankQuery filters = new RankQuery(RankQuery.What.ITEMS);
+            parseFilters(args, filters, false);
+            LogExport export = new LogExport(format, filters);
+            LogRetention retention = this.plugin.getLogRetention();
+            if (retention != null) {
+                Date cutoff = retention.getCutoff();
+                if (filters.getSince() == null || filters.getSince().before(cutoff)) {
+                    sender.sendMessage(text("Logs before " + new SimpleDateFormat("yyyy-MM-dd").format(cutoff) + " are compacted into daily totals"
+                                            + " and will not be exported.", RED));
                 }
-                break;
-            }
-            default: throw new CommandException("Invalid what: " + what);
             }
+            String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            File file = new File(this.plugin.getDataFolder(), "logs-" + stamp + "." + format.extension);
+            sender.sendMessage("Exporting sale logs to " + file + "...");
+            this.plugin.runAsync(() -> {
+                    String message;
+                    try {
+                        long count = export.write(this.plugin.getSqlDatabase().getConnection(),
+                                                  this.plugin.getSqlDatabase().getTable(SQLLog.class).getTableName(),
+                                                  file, this.plugin.getMetrics());
+                        message = "Exported " + count + " sale logs to " + file + ".";
+                    } catch (Exception e) {
+                        this.plugin.getLogger().log(Level.SEVERE, "Exporting sale logs", e);
+                        message = "Exporting sale logs failed: " + e.getMessage();
+                    }
+                    final String result = message;
+                    this.plugin.getServer().getScheduler().runTask(this.plugin, () -> sender.sendMessage(result));
+                });
             return true;
         }
         case "import": {
+            expectPricesLoaded();
             File file = new File(this.plugin.getDataFolder(), "prices.yml");
             if (!file.exists()) throw new CommandException("File not found: " + file);
-            long count = this.plugin.importMaterialPrices(file).entrySet().stream().peek(e -> {
-                    this.plugin.setMaterialPrice(e.getKey(), e.getValue());
-                }).count();
-            sender.sendMessage("" + count + " prices imported from " + file + ".");
+            this.plugin.importMaterialPricesAsync(file, sender::sendMessage);
             return true;
         }
         case "export": {
             File file = new File(this.plugin.getDataFolder(), "prices.yml");
-            this.plugin.exportMaterialPrices(file);
-            sender.sendMessage("Prices written to " + file + ".");
+            this.plugin.exportMaterialPricesAsync(file, sender::sendMessage);
+            return true;
+        }
+        case "stats": {
+            if (args.length == 1 && args[0].equals("reset")) {
+                this.plugin.getMetrics().reset();
+                sender.sendMessage("Stats reset.");
+                return true;
+            }
+            if (args.length != 0) return false;
+            if (!this.plugin.isPricesLoaded()) {
+                sender.sendMessage("Prices not loaded from the database"
+                                   + (this.plugin.isSnapshotLoaded() ? ", selling from the snapshot" : ", selling is closed")
+                                   + (this.plugin.getPriceLoadBackoff() > 0
+                                      ? ", retrying every " + (this.plugin.getPriceLoadBackoff() / 20L) + "s"
+                                      : ""));
+            }
+            this.plugin.getMetrics().getStats(this.plugin.getLogQueue().getDepth()).forEach(sender::sendMessage);
+            sender.sendMessage("Reprice queue: " + this.plugin.getMenuRepricer().getQueueSize() + " menus");
+            return true;
+        }
+        case "queue": {
+            if (args.length != 0) return false;
+            this.plugin.getLogQueue().getStats().forEach(sender::sendMessage);
             return true;
         }
         default:
@@ -208,6 +256,71 @@ final class ItemMerchantCommand implements TabExecutor {
         }
     }
 
+    /**
+     * Parse the filters of a rank query, starting after the first
+     * argument.
+     */
+    private void parseFilters(String[] args, RankQuery query, boolean allowPage) throws CommandException {
+        Iterator<String> iter = Arrays.asList(args).subList(1, args.length).iterator();
+        while (iter.hasNext()) {
+            String arg = iter.next();
+            if (!iter.hasNext()) throw new CommandException("Value expected: " + arg);
+            switch (arg) {
+            case "days": {
+                int days = expectInt(iter.next(), "days");
+                query.setSince(new Date(System.currentTimeMillis() - (long) days * 24 * 60 * 60 * 1000));
+                break;
+            }
+            case "item": {
+                String name = iter.next().toLowerCase();
+                boolean custom = this.plugin.getItemPrices().getEntries().stream().anyMatch(e -> e.name.equals(name));
+                query.setMaterial(custom ? name : expectMaterial(name).name().toLowerCase());
+                break;
+            }
+            case "player": {
+                String n = iter.next();
+                UUID uuid = PlayerCache.uuidForName(n);
+                if (uuid == null) throw new CommandException("Player not found: " + n);
+                query.setPlayer(uuid);
+                break;
+            }
+            case "page": {
+                if (!allowPage) throw new CommandException("Unknown filter: " + arg);
+                int page = expectInt(iter.next(), "page");
+                if (page < 1) throw new CommandException("Invalid page: " + page);
+                query.setPage(page - 1);
+                break;
+            }
+            default: throw new CommandException("Unknown filter: " + arg);
+            }
+        }
+    }
+
+    private void sendRanking(CommandSender sender, RankQuery query, RankQuery.Result result) {
+        sender.sendMessage("Total " + result.total + " search results"
+                           + ", page " + (result.page + 1) + "/" + result.getPageCount());
+        int rank = result.page * RankQuery.PAGE_SIZE;
+        for (RankQuery.Entry entry : result.entries) {
+            rank += 1;
+            final String name;
+            if (query.getWhat() == RankQuery.What.PLAYERS) {
+                String playerName;
+                try {
+                    playerName = PlayerCache.nameForUuid(UUID.fromString(entry.key));
+                } catch (IllegalArgumentException iae) {
+                    playerName = null;
+                }
+                name = playerName != null ? playerName : entry.key;
+            } else {
+                name = this.plugin.niceEnum(entry.key.toUpperCase());
+            }
+            sender.sendMessage("" + rank + ")"
+                               + " x" + entry.amount
+                               + " $" + this.plugin.fmt(entry.money)
+                               + " " + name);
+        }
+    }
+
     @Override
     public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
         if (args.length == 0) return null;
@@ -215,7 +328,7 @@ final class ItemMerchantCommand implements TabExecutor {
             return complete(args[0], COMMANDS.stream());
         }
         if (args.length == 2 && (args[0].equals("get") || args[0].equals("set"))) {
-            return complete(args[1], Arrays.stream(Material.values()).map(Object::toString).map(String::toLowerCase));
+            return new ArrayList<>(MaterialNames.get().complete(args[1]));
         }
         if (args.length == 3 && args[0].equals("set")) {
             try {
@@ -231,6 +344,10 @@ final class ItemMerchantCommand implements TabExecutor {
         return opt.filter(o -> o.startsWith(arg)).collect(Collectors.toList());
     }
 
+    void expectPricesLoaded() throws CommandException {
+        if (!this.plugin.isPricesLoaded()) throw new CommandException("Prices are still loading from the database!");
+    }
+
     Material expectMaterial(String arg) throws CommandException {
         try {
             return Material.valueOf(arg.toUpperCase());
@@ -239,6 +356,29 @@ final class ItemMerchantCommand implements TabExecutor {
         }
     }
 
+    int expectInt(String arg, String what) throws CommandException {
+        try {
+            return Integer.parseInt(arg);
+        } catch (NumberFormatException nfe) {
+            throw new CommandException("Invalid " + what + ": " + arg);
+        }
+    }
+
+    ItemStack expectItemInHand(CommandSender sender) throws CommandException {
+        if (!(sender instanceof Player)) throw new CommandException("Player expected!");
+        ItemStack item = ((Player) sender).getInventory().getItemInMainHand();
+        if (item == null || item.getType() == Material.AIR) throw new CommandException("No item in hand!");
+        return item;
+    }
+
+    long expectFingerprint(ItemStack item) throws CommandException {
+        long fingerprint = ItemFingerprint.of(item);
+        if (fingerprint == ItemFingerprint.NONE) {
+            throw new CommandException("Item has no custom model data or persistent data. Use /im set instead.");
+        }
+        return fingerprint;
+    }
+
     Double expectPrice(String arg) throws CommandException {
         final double val;
         try {
@@ -4,21 +4,32 @@ import com.cavetale.core.event.player.PluginPlayerEvent.Detail;
 import com.cavetale.core.event.player.PluginPlayerEvent;
 import com.cavetale.money.Money;
 import com.winthier.sql.SQLDatabase;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
-import net.kyori.adventure.text.format.TextDecoration;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
 import org.bukkit.Sound;
@@ -27,40 +38,136 @@ import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
-import org.bukkit.event.inventory.InventoryClickEvent;
-import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryView;
-import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public final class ItemMerchantPlugin extends JavaPlugin {
-    private Map<Material, Double> materialPrices;
+    static final int MAX_REASON_LENGTH = 200;
+    static final long MIN_PRICE_LOAD_BACKOFF = 5L * 20L;
+    static final long MAX_PRICE_LOAD_BACKOFF = 5L * 60L * 20L;
+    /** Replaced, never mutated, so any thread may read it. */
+    @Getter private volatile PriceTable priceTable = PriceTable.EMPTY;
+    /** Prices of custom items, replaced like the price table. */
+    @Getter private volatile ItemPrices itemPrices = ItemPrices.EMPTY;
     @Getter private SQLDatabase sqlDatabase;
+    @Getter private SQLLogQueue logQueue;
+    @Getter private SalesWindow salesWindow;
+    @Getter private final MenuIconCache menuIconCache = new MenuIconCache();
+    @Getter private final Metrics metrics = new Metrics();
+    /** Read by getSalePrices on any thread. */
+    @Getter private volatile DynamicPricing dynamicPricing;
+    /** True once prices came from the database. */
+    @Getter private boolean pricesLoaded;
+    /** True if prices came from the local snapshot. */
+    @Getter private boolean snapshotLoaded;
+    private boolean snapshotSavePending;
+    private final PriceSync priceSync = new PriceSync(this);
+    /** Ticks until the price load is retried, 0 before the first failure. */
+    @Getter private volatile long priceLoadBackoff;
+    /** Null if logs are kept forever. */
+    @Getter private LogRetention logRetention;
+    /** Null if clicks are not limited. */
+    @Getter private ClickLimiter clickLimiter;
+    private final Map<UUID, SellMenu> sellMenus = new HashMap<>();
+    @Getter private MenuRepricer menuRepricer;
+    /** Null if sales are not limited. */
+    @Getter private SellQuota sellQuota;
 
     // Plugin Overrides
 
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+        reloadConfig();
         try {
             this.sqlDatabase = new SQLDatabase(this);
-            this.sqlDatabase.registerTables(SQLLog.class, SQLPrice.class);
-            this.sqlDatabase.createAllTables();
+            this.sqlDatabase.registerTables(SQLLog.class, SQLPrice.class, SQLDailySales.class, SQLItemPrice.class);
         } catch (Exception e) {
             getLogger().warning("Setting up databases");
             throw new IllegalStateException(e);
         }
-        loadMaterialPrices();
+        loadPriceSnapshot();
+        loadMaterialPricesAsync();
+        SaleJournal journal = getConfig().getBoolean("log-queue.journal")
+            ? new SaleJournal(new File(getDataFolder(), "journal.dat"), getLogger())
+            : null;
+        this.logQueue = new SQLLogQueue(this,
+                                        getConfig().getInt("log-queue.capacity"),
+                                        getConfig().getInt("log-queue.batch-size"),
+                                        getConfig().getLong("log-queue.flush-interval"),
+                                        journal);
+        this.logQueue.enable();
+        this.salesWindow = new SalesWindow(this, getConfig().getInt("rolling-window.days"));
+        if (getConfig().getBoolean("dynamic-pricing.enabled")) {
+            this.dynamicPricing = new DynamicPricing(this,
+                                                     getConfig().getDouble("dynamic-pricing.half-life"),
+                                                     getConfig().getDouble("dynamic-pricing.reference-volume"),
+                                                     getConfig().getDouble("dynamic-pricing.min-factor"),
+                                                     getConfig().getLong("dynamic-pricing.update-interval") * 20L);
+            this.dynamicPricing.enable();
+        }
+        if (getConfig().getBoolean("retention.enabled")) {
+            // The sales window is seeded from raw logs, so keep at least that many days.
+            int keepDays = Math.max(getConfig().getInt("retention.keep-days"), this.salesWindow.getDays() + 1);
+            this.logRetention = new LogRetention(this, keepDays,
+                                                 getConfig().getInt("retention.chunk-size"),
+                                                 getConfig().getLong("retention.chunk-delay"),
+                                                 getConfig().getBoolean("retention.archive"));
+            this.logRetention.enable(getConfig().getLong("retention.interval") * 60L * 20L);
+        }
+        if (getConfig().getDouble("click-limit.rate") > 0) {
+            this.clickLimiter = new ClickLimiter(this.metrics,
+                                                 getConfig().getDouble("click-limit.rate"),
+                                                 getConfig().getInt("click-limit.burst"),
+                                                 getConfig().getLong("click-limit.debounce"));
+        }
+        if (getConfig().getBoolean("quota.enabled")) {
+            this.sellQuota = new SellQuota(this,
+                                           getConfig().getDouble("quota.daily-money"),
+                                           getConfig().getDouble("quota.daily-money-per-item"));
+        }
+        this.menuRepricer = new MenuRepricer(this, getConfig().getLong("reprice.budget"));
+        this.menuRepricer.enable();
+        getServer().getServicesManager().register(MerchantValuation.class, new ValuationService(this),
+                                                  this, ServicePriority.Normal);
         getCommand("itemmerchant").setExecutor(new ItemMerchantCommand(this));
         getServer().getPluginManager().registerEvents(new ChestMenuListener(), this);
+        getServer().getPluginManager().registerEvents(new PlayerListener(this), this);
+        long settleAfter = getConfig().getLong("sale-session.settle-after") * 1000L;
+        getServer().getScheduler().runTaskTimer(this, () -> settleExpiredSellMenus(settleAfter), 20L, 20L);
+        long metricsInterval = getConfig().getLong("metrics.interval") * 20L;
+        if (metricsInterval > 0) {
+            getServer().getScheduler().runTaskTimerAsynchronously(this, this::writeMetrics, metricsInterval, metricsInterval);
+        }
     }
 
     @Override
     public void onDisable() {
+        getServer().getServicesManager().unregisterAll(this);
         getServer().getOnlinePlayers().forEach((player) -> {
             InventoryView view = player.getOpenInventory();
             if (view != null && view.getTopInventory().getHolder() instanceof ChestMenu) player.closeInventory();
         });
+        for (SellMenu sellMenu : this.sellMenus.values()) sellMenu.settle();
+        this.sellMenus.clear();
+        if (this.menuRepricer != null) {
+            this.menuRepricer.disable();
+            this.menuRepricer = null;
+        }
+        if (this.dynamicPricing != null) {
+            this.dynamicPricing.disable();
+            this.dynamicPricing = null;
+        }
+        this.priceSync.disable();
+        if (this.logRetention != null) {
+            this.logRetention.disable();
+            this.logRetention = null;
+        }
+        if (this.logQueue != null) {
+            this.logQueue.disable();
+            this.logQueue = null;
+        }
     }
 
     /**
@@ -73,8 +180,21 @@ public final class ItemMerchantPlugin extends JavaPlugin {
             return true;
         }
         Player player = (Player) sender;
+        if (!this.pricesLoaded && !this.snapshotLoaded) {
+            player.sendMessage(Component.text("The merchant is not open yet. Please try again in a moment.",
+                                              NamedTextColor.RED));
+            return true;
+        }
+        if (args.length == 1 && args[0].equals("all")) {
+            InventoryScan scan = new InventoryScan();
+            scan.scan(player.getInventory(), this.itemPrices);
+            SaleLedger ledger = new SaleLedger();
+            sellAll(player, scan, ledger);
+            settle(player, ledger, true);
+            return true;
+        }
         if (args.length != 0) {
-            player.sendMessage(ChatColor.RED + "Usage: /sell");
+            player.sendMessage(ChatColor.RED + "Usage: /sell [all]");
             return true;
         }
         player.playSound(player.getEyeLocation(), Sound.BLOCK_CHEST_OPEN, SoundCategory.MASTER, 0.5f, 1.0f);
@@ -82,32 +202,221 @@ public final class ItemMerchantPlugin extends JavaPlugin {
         return true;
     }
 
+    /**
+     * Run a task on an async thread, counting it in the metrics
+     * until it is done.
+     */
+    void runAsync(Runnable task) {
+        this.metrics.asyncTaskQueued();
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+                try {
+                    task.run();
+                } finally {
+                    this.metrics.asyncTaskDone();
+                }
+            });
+    }
+
+    private void writeMetrics() {
+        SQLLogQueue queue = this.logQueue;
+        try {
+            this.metrics.write(new File(getDataFolder(), "metrics.txt"), queue != null ? queue.getDepth() : 0);
+        } catch (IOException ioe) {
+            getLogger().warning("Writing metrics: " + ioe.getMessage());
+        }
+    }
+
     // Data Import
 
-    void loadMaterialPrices() {
-        this.materialPrices = new EnumMap<>(Material.class);
-        this.sqlDatabase.find(SQLPrice.class).findList().forEach(row -> {
-                String key = row.getMaterial();
+    private File getSnapshotFile() {
+        return new File(getDataFolder(), "prices.dat");
+    }
+
+    void loadPriceSnapshot() {
+        try {
+            PriceTable snapshot = PriceSnapshot.load(getSnapshotFile());
+            if (snapshot == null) return;
+            this.priceTable = snapshot;
+            this.snapshotLoaded = true;
+        } catch (IOException ioe) {
+            getLogger().warning("Loading price snapshot: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Write the price snapshot soon, on an async thread. Several
+     * changes in a row are written once.
+     */
+    void savePriceSnapshotLater() {
+        if (this.snapshotSavePending) return;
+        this.snapshotSavePending = true;
+        getServer().getScheduler().runTaskLater(this, () -> {
+                this.snapshotSavePending = false;
+                final PriceTable table = this.priceTable;
+                runAsync(() -> {
+                        try {
+                            PriceSnapshot.save(getSnapshotFile(), table);
+                        } catch (IOException ioe) {
+                            getLogger().warning("Saving price snapshot: " + ioe.getMessage());
+                        }
+                    });
+            }, 20L);
+    }
+
+    /**
+     * Add a column to a table created before it existed. Logs the
+     * statement to run by hand if that fails. Blocks, so never call
+     * this on the main thread.
+     * @param alter the ALTER TABLE clauses adding the column
+     */
+    private void addMissingColumn(Class<?> type, String column, String alter) {
+        String table = this.sqlDatabase.getTable(type).getTableName();
+        String sql = "ALTER TABLE `" + table + "` " + alter;
+        try {
+            Connection connection = this.sqlDatabase.getConnection();
+            try (ResultSet columns = connection.getMetaData().getColumns(connection.getCatalog(), null, table, column)) {
+                if (columns.next()) return;
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(sql);
+            }
+            getLogger().info("Added column " + column + " to table " + table);
+        } catch (SQLException sqle) {
+            getLogger().severe("Missing column " + column + " in table " + table + ": " + sqle.getMessage()
+                               + ". Please run: " + sql);
+        }
+    }
+
+    /**
+     * Create the tables and load all prices on an async thread. Until
+     * this is done, the snapshot prices are used. A failed load is
+     * retried with exponential backoff.
+     */
+    void loadMaterialPricesAsync() {
+        runAsync(() -> {
+                final List<SQLPrice> rows;
+                final List<SQLItemPrice> itemRows;
+                long start = System.nanoTime();
                 try {
-                    Material mat = Material.valueOf(key.toUpperCase());
-                    this.materialPrices.put(mat, row.getPrice());
-                } catch (IllegalArgumentException iae) {
-                    getLogger().warning("Invalid material: " + key);
+                    this.sqlDatabase.createAllTables();
+                    addMissingColumn(SQLPrice.class, "updated",
+                                     "ADD COLUMN `updated` DATETIME NULL, ADD INDEX `updated` (`updated`)");
+                    addMissingColumn(SQLDailySales.class, "last_id", "ADD COLUMN `last_id` INT NULL");
+                    rows = this.sqlDatabase.find(SQLPrice.class).findList();
+                    itemRows = this.sqlDatabase.find(SQLItemPrice.class).findList();
+                    this.metrics.time(Metrics.Timing.DB_QUERY, start);
+                } catch (Exception e) {
+                    this.priceLoadBackoff = Math.min(MAX_PRICE_LOAD_BACKOFF, Math.max(MIN_PRICE_LOAD_BACKOFF,
+                                                                                      this.priceLoadBackoff * 2L));
+                    getLogger().log(Level.SEVERE, "Loading prices from database, retrying in "
+                                    + (this.priceLoadBackoff / 20L) + "s", e);
+                    if (isEnabled()) {
+                        getServer().getScheduler().runTaskLater(this, this::loadMaterialPricesAsync, this.priceLoadBackoff);
+                    }
+                    return;
+                }
+                Map<Material, Double> prices = new EnumMap<>(Material.class);
+                Date latest = null;
+                for (SQLPrice row : rows) {
+                    Material mat = Material.getMaterial(row.getMaterial().toUpperCase());
+                    if (mat == null) {
+                        getLogger().warning("Invalid material: " + row.getMaterial());
+                        continue;
+                    }
+                    if (!PriceTable.isValidPrice(row.getPrice())) {
+                        getLogger().warning("Invalid price: " + row.getMaterial() + ": " + row.getPrice());
+                        continue;
+                    }
+                    prices.put(mat, row.getPrice());
+                    if (row.getUpdated() != null && (latest == null || row.getUpdated().after(latest))) {
+                        latest = row.getUpdated();
+                    }
                 }
+                List<ItemPrices.Entry> itemEntries = new ArrayList<>(itemRows.size());
+                for (SQLItemPrice row : itemRows) {
+                    Material mat = Material.getMaterial(row.getMaterial().toUpperCase());
+                    if (mat == null) {
+                        getLogger().warning("Invalid material: " + row.getMaterial());
+                        continue;
+                    }
+                    if (!PriceTable.isValidPrice(row.getPrice())) {
+                        getLogger().warning("Invalid price: " + row.getName() + ": " + row.getPrice());
+                        continue;
+                    }
+                    itemEntries.add(new ItemPrices.Entry(row.getFingerprint(), row.getName(), mat, row.getPrice()));
+                }
+                final PriceTable table = PriceTable.of(prices);
+                final ItemPrices items = ItemPrices.of(itemEntries);
+                final Date updated = latest;
+                getServer().getScheduler().runTask(this, () -> {
+                        this.itemPrices = items;
+                        onMaterialPricesLoaded(table, updated);
+                    });
             });
     }
 
+    private void onMaterialPricesLoaded(PriceTable table, Date updated) {
+        this.priceTable = table;
+        this.pricesLoaded = true;
+        this.menuIconCache.clear();
+        onPricesChanged();
+        if (this.dynamicPricing != null) this.dynamicPricing.update();
+        savePriceSnapshotLater();
+        this.priceSync.seen(updated);
+        long priceSyncInterval = getConfig().getLong("price-sync.interval") * 20L;
+        if (priceSyncInterval > 0) this.priceSync.enable(priceSyncInterval);
+        this.salesWindow.seedAsync();
+    }
+
     void setMaterialPrice(Material mat, double price) {
-        if (price < 0) throw new IllegalArgumentException("Price cannot be negative!");
-        if (Double.isNaN(price)) throw new IllegalArgumentException("Price cannot be NaN!");
-        if (Double.isInfinite(price)) throw new IllegalArgumentException("Price cannot be infinite!");
-        this.materialPrices.put(Objects.requireNonNull(mat, "Material cannot be null!"), price);
-        this.sqlDatabase.save(new SQLPrice(mat, price));
+        this.priceTable = this.priceTable.with(mat, price);
+        this.menuIconCache.invalidate(mat);
+        onPricesChanged();
+        if (this.dynamicPricing != null) this.dynamicPricing.update();
+        savePriceSnapshotLater();
+        SQLPrice row = new SQLPrice(mat, price);
+        this.priceSync.wroteLocally(mat, row.getUpdated().getTime());
+        this.sqlDatabase.save(row);
+    }
+
+    void setItemPrice(long fingerprint, String name, Material mat, double price) {
+        this.itemPrices = this.itemPrices.with(new ItemPrices.Entry(fingerprint, name, mat, price));
+        this.menuIconCache.invalidate(fingerprint);
+        onPricesChanged();
+        this.sqlDatabase.save(new SQLItemPrice(fingerprint, name, mat, price));
+    }
+
+    /**
+     * Apply several price changes at once, without saving them.
+     */
+    void applyPriceChanges(Map<Material, Double> changes) {
+        this.priceTable = this.priceTable.with(changes);
+        for (Material mat : changes.keySet()) this.menuIconCache.invalidate(mat);
+        onPricesChanged();
+        if (this.dynamicPricing != null) this.dynamicPricing.update();
+        savePriceSnapshotLater();
+    }
+
+    /**
+     * Queue all open sell menus to pick up new prices.
+     */
+    void onPricesChanged() {
+        if (this.menuRepricer != null) this.menuRepricer.enqueue(this.sellMenus.values());
     }
 
     double getMaterialPrice(Material mat) {
-        Double res = this.materialPrices.get(Objects.requireNonNull(mat, "Material cannot be null!"));
-        return res != null ? res : 0;
+        return this.priceTable.get(Objects.requireNonNull(mat, "Material cannot be null!"));
+    }
+
+    /**
+     * The prices players are paid: the dynamic prices if enabled,
+     * otherwise the base prices.
+     */
+    PriceTable getSalePrices() {
+        DynamicPricing dynamic = this.dynamicPricing;
+        if (dynamic == null) return this.priceTable;
+        PriceTable result = dynamic.getPrices();
+        return result != null ? result : this.priceTable;
     }
 
     // Import Export
@@ -127,148 +436,361 @@ public final class ItemMerchantPlugin extends JavaPlugin {
         return result;
     }
 
-    void exportMaterialPrices(File file) {
-        YamlConfiguration cfg = new YamlConfiguration();
-        this.materialPrices.forEach((k, v) -> cfg.set(k.name().toLowerCase(), v));
-        try {
-            cfg.save(file);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+    /**
+     * Write prices as YAML, one line per material, straight to disk.
+     */
+    static void exportMaterialPrices(File file, PriceTable table) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp.toPath())) {
+            IOException[] error = new IOException[1];
+            table.forEach((mat, price) -> {
+                    if (error[0] != null) return;
+                    try {
+                        out.write(mat.name().toLowerCase());
+                        out.write(": ");
+                        out.write(Double.toString(price));
+                        out.newLine();
+                    } catch (IOException ioe) {
+                        error[0] = ioe;
+                    }
+                });
+            if (error[0] != null) throw error[0];
         }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    // Chest Menu
+    /**
+     * Export the current prices on an async thread. The reply is
+     * called on the main thread.
+     */
+    void exportMaterialPricesAsync(File file, Consumer<String> reply) {
+        final PriceTable table = this.priceTable;
+        runAsync(() -> {
+                String message;
+                try {
+                    exportMaterialPrices(file, table);
+                    message = "Prices written to " + file + ".";
+                } catch (IOException ioe) {
+                    getLogger().log(Level.SEVERE, "Exporting prices", ioe);
+                    message = "Exporting prices failed: " + ioe.getMessage();
+                }
+                final String result = message;
+                getServer().getScheduler().runTask(this, () -> reply.accept(result));
+            });
+    }
 
-    @AllArgsConstructor
-    final class ItemCache {
-        final int index;
-        double price;
-        int amount;
+    /**
+     * Parse the file and compare it to the current prices on an async
+     * thread, save only the changed prices with one upsert statement,
+     * then apply them in one swap of the price table. The reply is
+     * called on the main thread.
+     */
+    void importMaterialPricesAsync(File file, Consumer<String> reply) {
+        final PriceTable current = this.priceTable;
+        runAsync(() -> {
+                final Map<Material, Double> changes = new EnumMap<>(Material.class);
+                final long now = System.currentTimeMillis();
+                final int total;
+                try {
+                    Map<Material, Double> imported = importMaterialPrices(file);
+                    total = imported.size();
+                    for (Map.Entry<Material, Double> entry : imported.entrySet()) {
+                        PriceTable.checkPrice(entry.getValue());
+                        if (entry.getValue() != current.get(entry.getKey())) {
+                            changes.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    if (!changes.isEmpty()) {
+                        long start = System.nanoTime();
+                        savePrices(changes, now);
+                        this.metrics.time(Metrics.Timing.DB_INSERT, start);
+                    }
+                } catch (Exception e) {
+                    getLogger().log(Level.SEVERE, "Importing prices", e);
+                    getServer().getScheduler().runTask(this, () -> reply.accept("Import failed: " + e.getMessage()));
+                    return;
+                }
+                getServer().getScheduler().runTask(this, () -> {
+                        for (Material mat : changes.keySet()) this.priceSync.wroteLocally(mat, now);
+                        if (!changes.isEmpty()) applyPriceChanges(changes);
+                        reply.accept("" + changes.size() + " of " + total + " prices changed by import from " + file + ".");
+                    });
+            });
     }
 
-    InventoryView openShopChest(Player player) {
-        Inventory playerInv = player.getInventory();
-        Map<Material, ItemCache> items = new EnumMap<>(Material.class);
-        ChestMenu menu = new ChestMenu();
-        menu.createInventory(4 * 9, Component.text("Sell Items", NamedTextColor.DARK_PURPLE, TextDecoration.BOLD));
-        for (int menuIndex = 0; menuIndex < 4 * 9; menuIndex += 1) {
-            int playerIndex = menuIndex < 27 ? menuIndex + 9 : menuIndex - 27;
-            ItemStack item = playerInv.getItem(playerIndex);
-            if (item == null) continue;
-            Material mat = item.getType();
-            if (mat == Material.AIR) continue;
-            if (!item.isSimilar(new ItemStack(mat))) continue;
-            if (items.containsKey(mat)) {
-                items.get(mat).amount += item.getAmount();
-            } else {
-                Double price = this.materialPrices.get(mat);
-                if (price == null || price <= 0.0) price = 0.0;
-                items.put(mat, new ItemCache(menuIndex, price, item.getAmount()));
-            }
+    /**
+     * Save several prices in one INSERT ... ON DUPLICATE KEY UPDATE
+     * statement, which either applies completely or not at all.
+     */
+    private void savePrices(Map<Material, Double> prices, long updated) throws SQLException {
+        String table = this.sqlDatabase.getTable(SQLPrice.class).getTableName();
+        StringBuilder sql = new StringBuilder("INSERT INTO `" + table + "` (`material`, `price`, `updated`) VALUES ");
+        for (int i = 0; i < prices.size(); i += 1) {
+            sql.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
         }
-        final String cl = "" + ChatColor.GREEN + ChatColor.BOLD;
-        final String pu = "" + ChatColor.DARK_PURPLE + ChatColor.ITALIC;
-        final String pr = "" + ChatColor.GREEN + ChatColor.ITALIC + ChatColor.UNDERLINE;
-        final String vl = " " + ChatColor.LIGHT_PURPLE + ChatColor.STRIKETHROUGH
-            + "                                 ";
-        int totalItemCount = 0;
-        for (Map.Entry<Material, ItemCache> entry : items.entrySet()) {
-            Material mat = entry.getKey();
-            ItemCache item = entry.getValue();
-            if (item.price < 0.01) continue;
-            ItemStack menuItem = new ItemStack(mat);
-            ItemMeta meta = menuItem.getItemMeta();
-            List<Component> lore = new ArrayList<>();
-            lore.add(Component.text(cl + "Left click " + ChatColor.DARK_PURPLE + "to sell one item"));
-            lore.add(Component.text("for " + pr + Money.format(item.price) + pu + "."));
-            int stack = mat.getMaxStackSize();
-            if (stack > 1 && item.amount > 1) {
-                int amount = Math.min(stack, item.amount);
-                lore.add(Component.text(vl));
-                lore.add(Component.text(cl + "Right click " + ChatColor.DARK_PURPLE + "to sell one stack"));
-                lore.add(Component.text("(" + amount + " items) for "
-                                        + pr + Money.format(item.price * (double) amount) + pu + "."));
+        sql.append(" ON DUPLICATE KEY UPDATE `price` = VALUES(`price`), `updated` = VALUES(`updated`)");
+        Timestamp now = new Timestamp(updated);
+        try (PreparedStatement statement = this.sqlDatabase.getConnection().prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Map.Entry<Material, Double> entry : prices.entrySet()) {
+                statement.setString(index++, entry.getKey().name().toLowerCase());
+                statement.setDouble(index++, entry.getValue());
+                statement.setTimestamp(index++, now);
             }
-            if (item.amount > 1) {
-                lore.add(Component.text(vl));
-                lore.add(Component.text(cl + "Shift click " + ChatColor.DARK_PURPLE + "to sell all"));
-                lore.add(Component.text("(" + item.amount + " items) for "
-                                        + pr + Money.format(item.price * (double) item.amount) + pu + "."));
+            statement.executeUpdate();
+        }
+    }
+
+    // Chest Menu
+
+    InventoryView openShopChest(Player player) {
+        long start = System.nanoTime();
+        // Start loading the sell quota so it is known by the first click.
+        if (this.sellQuota != null) this.sellQuota.prepare(player.getUniqueId());
+        SellMenu sellMenu = this.sellMenus.get(player.getUniqueId());
+        if (sellMenu != null && !sellMenu.isClosed()
+            && player.getOpenInventory().getTopInventory().getHolder() == sellMenu.getMenu()) {
+            if (sellMenu.refresh() == 0) {
+                player.sendMessage(Component.text("You have no items to sell!", NamedTextColor.RED));
             }
-            meta.lore(lore);
-            menuItem.setItemMeta(meta);
-            menu.setClick(item.index, menuItem, (event) -> onMenuClick(event, menu, mat, item));
-            totalItemCount += 1;
+            this.metrics.time(Metrics.Timing.OPEN_MENU, start);
+            return player.getOpenInventory();
         }
-        if (totalItemCount == 0) {
+        sellMenu = new SellMenu(this, player);
+        if (sellMenu.refresh() == 0) {
             player.sendMessage(Component.text("You have no items to sell!", NamedTextColor.RED));
         }
-        return menu.open(player);
-    }
-
-    void onMenuClick(InventoryClickEvent event, ChestMenu menu, Material mat, ItemCache cache) {
-        if (cache.price < 0.01) throw new IllegalArgumentException("Cannot sell " + mat + " for less than 0.01!");
-        Player player = (Player) event.getWhoClicked();
-        boolean left = event.isLeftClick();
-        boolean right = event.isRightClick();
-        boolean shift = event.isShiftClick();
-        final int amount;
-        if (left && !shift) {
-            amount = 1;
-        } else if (right && !shift) {
-            amount = Math.min(mat.getMaxStackSize(), cache.amount);
-        } else if (shift) {
-            amount = cache.amount;
-        } else {
-            player.playSound(player.getEyeLocation(), Sound.UI_BUTTON_CLICK, SoundCategory.MASTER, 0.5f, 0.75f);
-            return;
+        InventoryView view = sellMenu.open();
+        if (view != null) this.sellMenus.put(player.getUniqueId(), sellMenu);
+        this.metrics.time(Metrics.Timing.OPEN_MENU, start);
+        return view;
+    }
+
+    void onSellMenuClose(SellMenu sellMenu) {
+        this.sellMenus.remove(sellMenu.getPlayer().getUniqueId(), sellMenu);
+        sellMenu.settle();
+    }
+
+    void onPlayerQuit(Player player) {
+        SellMenu sellMenu = this.sellMenus.remove(player.getUniqueId());
+        if (sellMenu != null) sellMenu.settle();
+        if (this.clickLimiter != null) this.clickLimiter.remove(player.getUniqueId());
+    }
+
+    void onSellQuotaLoaded(UUID uuid) {
+        SellMenu sellMenu = this.sellMenus.get(uuid);
+        if (sellMenu != null && !sellMenu.isClosed()) sellMenu.redraw();
+    }
+
+    private void settleExpiredSellMenus(long settleAfter) {
+        if (this.sellMenus.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        for (SellMenu sellMenu : this.sellMenus.values()) {
+            long openedAt = sellMenu.getLedger().getOpenedAt();
+            if (openedAt != 0L && now - openedAt >= settleAfter) sellMenu.settle();
         }
-        menu.setValid(false);
-        sellItems(player, mat, amount, cache.price);
-        getServer().getScheduler().runTask(this, () -> openShopChest(player));
     }
 
-    void sellItems(Player player, Material mat, int amount, double pricePerItem) {
+    /**
+     * Refuse sales while the sale logs cannot be stored.
+     */
+    private boolean isLogQueueFull(Player player) {
+        if (this.logQueue == null || !this.logQueue.isFull()) return false;
+        player.sendMessage(Component.text("The merchant is busy. Please try again in a moment.", NamedTextColor.RED));
+        return true;
+    }
+
+    /**
+     * Refuse sales until the sell quota of the player is known.
+     */
+    private boolean isSellQuotaReady(Player player) {
+        if (this.sellQuota.prepare(player.getUniqueId())) return true;
+        player.sendMessage(Component.text("Checking your daily sell limit. Please try again in a moment.",
+                                          NamedTextColor.RED));
+        return false;
+    }
+
+    /**
+     * Take items of one group found by the last scan of the player
+     * inventory and book them in the ledger.
+     * @return the number of items taken
+     */
+    int sellItems(Player player, InventoryScan scan, int group, int amount, double pricePerItem, SaleLedger ledger) {
+        long start = System.nanoTime();
+        Material mat = scan.getMaterial(group);
         if (pricePerItem < 0.01) throw new IllegalArgumentException("Cannot sell " + mat + " for less than 0.01!");
-        int itemsRemain = amount;
-        Inventory inv = player.getInventory();
-        ItemStack proto = new ItemStack(mat);
-        for (int i = 4 * 9 - 1; i >= 0 && itemsRemain > 0; i -= 1) {
-            int playerIndex = i < 27 ? i + 9 : i - 27;
-            ItemStack item = inv.getItem(playerIndex);
-            if (item == null || item.getType() != mat) continue;
-            if (!item.isSimilar(proto)) continue;
-            int itemAmount = item.getAmount();
-            int sold = Math.min(itemAmount, itemsRemain);
-            item.setAmount(itemAmount - sold);
-            itemsRemain -= sold;
-        }
-        int totalSold = amount - itemsRemain;
+        if (isLogQueueFull(player)) return 0;
+        long fingerprint = scan.getFingerprint(group);
+        ItemPrices.Entry itemPrice = null;
+        if (fingerprint != ItemFingerprint.NONE) {
+            itemPrice = this.itemPrices.get(fingerprint);
+            if (itemPrice == null) return 0;
+        }
+        if (this.sellQuota != null) {
+            if (!isSellQuotaReady(player)) return 0;
+            amount = this.sellQuota.cap(player.getUniqueId(), itemPrice == null ? mat : null, amount, pricePerItem);
+            if (amount <= 0) {
+                player.sendMessage(Component.text("You reached your daily limit for this item.", NamedTextColor.RED));
+                return 0;
+            }
+        }
+        int totalSold = scan.take(player.getInventory(), group, amount);
+        if (totalSold <= 0) return 0;
         double money = (double) totalSold * pricePerItem;
-        String nice = niceEnum(mat.name());
-        Money.give(player.getUniqueId(), money, this, "Sold " + totalSold + "x" + nice);
-        getLogger().info(player.getName() + " sold " + totalSold + "x" + mat.name() + " for " + fmt(money) + ".");
+        if (this.sellQuota != null) this.sellQuota.record(player.getUniqueId(), itemPrice == null ? mat : null, money);
+        if (itemPrice != null) {
+            ledger.add(itemPrice, scan.getSample(group), totalSold, money);
+        } else {
+            ledger.add(mat, totalSold, money);
+            if (this.dynamicPricing != null) this.dynamicPricing.record(mat, totalSold, System.currentTimeMillis());
+        }
         final String rs = "" + ChatColor.RESET;
         final String hl = "" + ChatColor.GREEN;
         final String pr = "" + ChatColor.GREEN + ChatColor.UNDERLINE;
-        if (this.sqlDatabase != null) {
-            this.sqlDatabase.insertAsync(new SQLLog(player.getUniqueId(), mat, amount, money), null);
-        }
-        player.sendMessage(rs + "Sold " + hl + totalSold + rs + "x" + hl + nice + rs + " for " + pr
+        String itemName = itemPrice != null ? itemPrice.name : niceEnum(mat.name());
+        player.sendMessage(rs + "Sold " + hl + totalSold + rs + "x" + hl + itemName + rs + " for " + pr
                            + Money.format(money) + rs + ".");
         player.playSound(player.getEyeLocation(), Sound.BLOCK_NOTE_BLOCK_GUITAR, SoundCategory.MASTER, 0.5f, 1.25f);
-        PluginPlayerEvent.Name.SELL_ITEM.make(this, player)
-            .detail(Detail.MATERIAL, mat)
-            .detail(Detail.ITEM, proto)
-            .detail(Detail.COUNT, totalSold)
-            .detail(Detail.MONEY, money)
-            .callEvent();
+        this.metrics.time(Metrics.Timing.SELL_ITEMS, start);
+        return totalSold;
+    }
+
+    /**
+     * Take every sellable group found by the last scan of the player
+     * inventory and book them in the ledger.
+     * @return the number of items taken
+     */
+    int sellAll(Player player, InventoryScan scan, SaleLedger ledger) {
+        long start = System.nanoTime();
+        if (isLogQueueFull(player)) return 0;
+        if (this.sellQuota != null && !isSellQuotaReady(player)) return 0;
+        PriceTable prices = getSalePrices();
+        ItemPrices items = this.itemPrices;
+        int totalSold = 0;
+        double totalMoney = 0;
+        boolean limited = false;
+        for (int group = 0; group < scan.getGroupCount(); group += 1) {
+            Material mat = scan.getMaterial(group);
+            long fingerprint = scan.getFingerprint(group);
+            ItemPrices.Entry itemPrice = fingerprint != ItemFingerprint.NONE ? items.get(fingerprint) : null;
+            if (fingerprint != ItemFingerprint.NONE && itemPrice == null) continue;
+            double price = itemPrice != null ? itemPrice.price : prices.get(mat);
+            if (price < 0.01) continue;
+            int amount = scan.getAmount(group);
+            if (this.sellQuota != null) {
+                int capped = this.sellQuota.cap(player.getUniqueId(), itemPrice == null ? mat : null, amount, price);
+                if (capped < amount) limited = true;
+                amount = capped;
+            }
+            if (amount <= 0) continue;
+            int sold = scan.take(player.getInventory(), group, amount);
+            if (sold <= 0) continue;
+            double money = (double) sold * price;
+            if (this.sellQuota != null) this.sellQuota.record(player.getUniqueId(), itemPrice == null ? mat : null, money);
+            if (itemPrice != null) {
+                ledger.add(itemPrice, scan.getSample(group), sold, money);
+            } else {
+                ledger.add(mat, sold, money);
+                if (this.dynamicPricing != null) this.dynamicPricing.record(mat, sold, System.currentTimeMillis());
+            }
+            totalSold += sold;
+            totalMoney += money;
+        }
+        if (limited) {
+            player.sendMessage(Component.text("Some items were kept because you reached your daily sell limit.",
+                                              NamedTextColor.RED));
+        }
+        if (totalSold == 0) {
+            if (!limited) player.sendMessage(Component.text("You have no items to sell!", NamedTextColor.RED));
+            return 0;
+        }
+        final String rs = "" + ChatColor.RESET;
+        final String hl = "" + ChatColor.GREEN;
+        final String pr = "" + ChatColor.GREEN + ChatColor.UNDERLINE;
+        player.sendMessage(rs + "Sold " + hl + totalSold + rs + " items for " + pr
+                           + Money.format(totalMoney) + rs + ".");
+        player.playSound(player.getEyeLocation(), Sound.BLOCK_NOTE_BLOCK_GUITAR, SoundCategory.MASTER, 0.5f, 1.25f);
+        this.metrics.time(Metrics.Timing.SELL_ITEMS, start);
+        return totalSold;
+    }
+
+    /**
+     * Pay out everything in the ledger with one Money.give, queue one
+     * log row per material and fire the sale events, either one per
+     * material or one for the whole ledger. The ledger is cleared.
+     */
+    void settle(Player player, SaleLedger ledger, boolean aggregateEvent) {
+        if (ledger.isEmpty()) return;
+        long start = System.nanoTime();
+        StringBuilder reason = new StringBuilder();
+        int hiddenReasons = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Material, SaleLedger.Entry> it : ledger.entries.entrySet()) {
+            Material mat = it.getKey();
+            SaleLedger.Entry entry = it.getValue();
+            if (this.logQueue != null) {
+                this.logQueue.add(new SQLLog(player.getUniqueId(), mat, entry.amount, entry.money));
+            }
+            if (this.salesWindow != null) {
+                this.salesWindow.record(player.getUniqueId(), mat, entry.amount, entry.money, now);
+            }
+            if (reason.length() < MAX_REASON_LENGTH) {
+                reason.append(reason.length() == 0 ? "Sold " : ", ")
+                    .append(entry.amount).append("x").append(niceEnum(mat.name()));
+            } else {
+                hiddenReasons += 1;
+            }
+            if (!aggregateEvent) {
+                PluginPlayerEvent.Name.SELL_ITEM.make(this, player)
+                    .detail(Detail.MATERIAL, mat)
+                    .detail(Detail.ITEM, InventoryScan.prototype(mat).clone())
+                    .detail(Detail.COUNT, entry.amount)
+                    .detail(Detail.MONEY, entry.money)
+                    .callEvent();
+            }
+        }
+        for (SaleLedger.Entry entry : ledger.items.values()) {
+            String name = entry.price.name;
+            if (this.logQueue != null) {
+                this.logQueue.add(new SQLLog(player.getUniqueId(), name, entry.amount, entry.money));
+            }
+            if (this.salesWindow != null) {
+                this.salesWindow.record(player.getUniqueId(), name, entry.amount, entry.money, now);
+            }
+            if (reason.length() < MAX_REASON_LENGTH) {
+                reason.append(reason.length() == 0 ? "Sold " : ", ")
+                    .append(entry.amount).append("x").append(name);
+            } else {
+                hiddenReasons += 1;
+            }
+            if (!aggregateEvent) {
+                PluginPlayerEvent.Name.SELL_ITEM.make(this, player)
+                    .detail(Detail.MATERIAL, entry.price.material)
+                    .detail(Detail.ITEM, entry.sample.clone())
+                    .detail(Detail.COUNT, entry.amount)
+                    .detail(Detail.MONEY, entry.money)
+                    .callEvent();
+            }
+        }
+        if (hiddenReasons > 0) reason.append(" and ").append(hiddenReasons).append(" more");
+        Money.give(player.getUniqueId(), ledger.getTotalMoney(), this, reason.toString());
+        getLogger().info(player.getName() + " sold " + ledger.getTotalAmount() + " items"
+                         + " of " + ledger.getKindCount() + " kinds for " + fmt(ledger.getTotalMoney()) + ".");
+        if (aggregateEvent) {
+            PluginPlayerEvent.Name.SELL_ITEM.make(this, player)
+                .detail(Detail.COUNT, ledger.getTotalAmount())
+                .detail(Detail.MONEY, ledger.getTotalMoney())
+                .callEvent();
+        }
+        ledger.clear();
+        this.metrics.time(Metrics.Timing.SETTLE, start);
     }
 
     // Util
 
     static String niceEnum(String name) {
         return Arrays.stream(name.split("_"))
+            .filter((s) -> !s.isEmpty())
             .map((s) -> s.substring(0, 1) + s.substring(1).toLowerCase())
             .collect(Collectors.joining(" "));
     }
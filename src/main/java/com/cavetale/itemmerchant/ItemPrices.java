@@ -0,0 +1,69 @@
+package com.cavetale.itemmerchant;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Material;
+
+/**
+ * Immutable prices of custom items, keyed by ItemFingerprint. Like
+ * PriceTable, changes produce a new table.
+ */
+final class ItemPrices {
+    static final ItemPrices EMPTY = new ItemPrices(Map.of());
+    private final Map<Long, Entry> entries;
+    /** By material ordinal, true if any custom item of it has a price. */
+    private final boolean[] materials = new boolean[PriceTable.MATERIALS.length];
+
+    @RequiredArgsConstructor
+    static final class Entry {
+        final long fingerprint;
+        final String name;
+        final Material material;
+        final double price;
+    }
+
+    private ItemPrices(final Map<Long, Entry> entries) {
+        this.entries = entries;
+        for (Entry entry : entries.values()) this.materials[entry.material.ordinal()] = true;
+    }
+
+    static ItemPrices of(Collection<Entry> entries) {
+        Map<Long, Entry> map = new HashMap<>();
+        for (Entry entry : entries) map.put(entry.fingerprint, entry);
+        return new ItemPrices(Collections.unmodifiableMap(map));
+    }
+
+    ItemPrices with(Entry entry) {
+        PriceTable.checkPrice(entry.price);
+        Map<Long, Entry> map = new HashMap<>(this.entries);
+        map.put(entry.fingerprint, entry);
+        return new ItemPrices(Collections.unmodifiableMap(map));
+    }
+
+    /**
+     * True if items of this material may have a custom price, so
+     * their fingerprint is worth computing.
+     */
+    boolean hasMaterial(Material mat) {
+        return this.materials[mat.ordinal()];
+    }
+
+    /**
+     * @return the entry, or null
+     */
+    Entry get(long fingerprint) {
+        return this.entries.get(fingerprint);
+    }
+
+    double getPrice(long fingerprint) {
+        Entry entry = this.entries.get(fingerprint);
+        return entry != null ? entry.price : 0.0;
+    }
+
+    Collection<Entry> getEntries() {
+        return this.entries.values();
+    }
+}
@@ -0,0 +1,119 @@
+package com.cavetale.itemmerchant;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Write raw sale logs to a file, in chunks ordered by id. Each chunk
+ * continues after the last id of the one before, so memory use does
+ * not depend on the number of rows, and no OFFSET has to be skipped.
+ * The filters select the same logs as /im rank, but logs compacted
+ * by LogRetention are gone. Meant to be run off the main thread.
+ */
+@Getter @RequiredArgsConstructor
+final class LogExport {
+    static final int CHUNK_SIZE = 1000;
+    private final Format format;
+    private final RankQuery filters;
+
+    enum Format {
+        CSV("csv"),
+        NDJSON("ndjson");
+
+        final String extension;
+
+        Format(final String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    long write(Connection connection, String table, File file, Metrics metrics) throws SQLException, IOException {
+        List<Object> params = new ArrayList<>();
+        String where = this.filters.where("time", params);
+        String sql = "SELECT `id`, `player`, `material`, `amount`, `price`, `time`"
+            + " FROM `" + table + "`" + where
+            + (where.isEmpty() ? " WHERE" : " AND") + " `id` > ?"
+            + " ORDER BY `id` LIMIT ?";
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        long total = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(tmp.toPath());
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            if (this.format == Format.CSV) {
+                out.write("id,player,material,amount,price,time");
+                out.newLine();
+            }
+            int lastId = 0;
+            int count;
+            do {
+                long start = System.nanoTime();
+                int index = 1;
+                for (Object param : params) statement.setObject(index++, param);
+                statement.setInt(index++, lastId);
+                statement.setInt(index++, CHUNK_SIZE);
+                count = 0;
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        lastId = resultSet.getInt(1);
+                        writeRow(out, lastId, resultSet.getString(2), resultSet.getString(3),
+                                 resultSet.getInt(4), resultSet.getDouble(5), resultSet.getTimestamp(6));
+                        count += 1;
+                    }
+                }
+                metrics.time(Metrics.Timing.DB_QUERY, start);
+                total += count;
+            } while (count == CHUNK_SIZE);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return total;
+    }
+
+    private void writeRow(BufferedWriter out, int id, String player, String material,
+                          int amount, double price, Timestamp time) throws IOException {
+        String timeString = time.toInstant().toString();
+        switch (this.format) {
+        case CSV:
+            out.write(id + "," + player + "," + material + "," + amount + "," + price + "," + timeString);
+            break;
+        case NDJSON:
+            out.write("{\"id\":" + id
+                      + ",\"player\":" + quote(player)
+                      + ",\"material\":" + quote(material)
+                      + ",\"amount\":" + amount
+                      + ",\"price\":" + price
+                      + ",\"time\":" + quote(timeString) + "}");
+            break;
+        default: throw new IllegalStateException("format=" + this.format);
+        }
+        out.newLine();
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i += 1) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,286 @@
+package com.cavetale.itemmerchant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Compact sale logs older than a number of days into daily totals.
+ * A run moves one chunk of old rows at a time, each in its own async
+ * task with a pause in between, so no statement holds the logs table
+ * for long:
+ *
+ * 1. Read the oldest chunk of rows before the cutoff.
+ * 2. Drop rows already counted, see below.
+ * 3. Optionally append them to archive/logs-YYYY-MM.csv.gz.
+ * 4. Add their totals to SQLDailySales with one upsert.
+ * 5. Delete the chunk by id range.
+ *
+ * Each daily total stores the highest log id it counted, written by
+ * the same upsert. Should the server die or the database fail between
+ * steps 4 and 5, the next run finds those rows again and skips them,
+ * so nothing is counted twice. Archive files are gzip members
+ * appended per chunk, which zcat and GZIPInputStream read as one
+ * stream.
+ */
+final class LogRetention {
+    private final ItemMerchantPlugin plugin;
+    private final int keepDays;
+    private final int chunkSize;
+    private final long chunkDelay;
+    private final boolean archive;
+    private BukkitTask task;
+    private boolean running;
+    private boolean disabled;
+
+    static final class Row {
+        int id;
+        String player;
+        String material;
+        long amount;
+        double price;
+        Timestamp time;
+    }
+
+    LogRetention(final ItemMerchantPlugin plugin, final int keepDays, final int chunkSize,
+                 final long chunkDelay, final boolean archive) {
+        if (keepDays < 1) throw new IllegalArgumentException("keepDays must be positive");
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+        this.plugin = plugin;
+        this.keepDays = keepDays;
+        this.chunkSize = chunkSize;
+        this.chunkDelay = Math.max(1L, chunkDelay);
+        this.archive = archive;
+    }
+
+    void enable(long interval) {
+        this.task = this.plugin.getServer().getScheduler().runTaskTimer(this.plugin, this::run, interval, interval);
+    }
+
+    void disable() {
+        this.disabled = true;
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    /**
+     * Midnight at the start of the oldest day to keep raw logs of.
+     */
+    Date getCutoff() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, -this.keepDays);
+        return calendar.getTime();
+    }
+
+    void run() {
+        if (this.running) return;
+        this.running = true;
+        nextChunk(new Timestamp(getCutoff().getTime()), 0);
+    }
+
+    private void nextChunk(Timestamp cutoff, int total) {
+        if (this.disabled) return;
+        this.plugin.runAsync(() -> {
+                int moved;
+                long start = System.nanoTime();
+                try {
+                    moved = compactChunk(cutoff);
+                    this.plugin.getMetrics().time(Metrics.Timing.DB_INSERT, start);
+                } catch (Exception e) {
+                    this.plugin.getLogger().warning("Log retention: " + e.getMessage());
+                    moved = -1;
+                }
+                final int result = moved;
+                this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                        if (result == this.chunkSize) {
+                            this.plugin.getServer().getScheduler()
+                                .runTaskLater(this.plugin, () -> nextChunk(cutoff, total + result), this.chunkDelay);
+                            return;
+                        }
+                        this.running = false;
+                        int sum = total + Math.max(0, result);
+                        if (sum > 0) this.plugin.getLogger().info("Compacted " + sum + " sale logs before " + cutoff);
+                    });
+            });
+    }
+
+    /**
+     * Move one chunk of logs into the daily totals.
+     * @return the number of rows moved
+     */
+    private int compactChunk(Timestamp cutoff) throws SQLException, IOException {
+        Connection connection = this.plugin.getSqlDatabase().getConnection();
+        String logTable = this.plugin.getSqlDatabase().getTable(SQLLog.class).getTableName();
+        String dailyTable = this.plugin.getSqlDatabase().getTable(SQLDailySales.class).getTableName();
+        List<Row> rows = new ArrayList<>(this.chunkSize);
+        try (PreparedStatement statement = connection.prepareStatement("SELECT `id`, `player`, `material`, `amount`, `price`, `time`"
+                                                                       + " FROM `" + logTable + "`"
+                                                                       + " WHERE `time` < ?"
+                                                                       + " ORDER BY `id` LIMIT ?")) {
+            statement.setTimestamp(1, cutoff);
+            statement.setInt(2, this.chunkSize);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    Row row = new Row();
+                    row.id = resultSet.getInt(1);
+                    row.player = resultSet.getString(2);
+                    row.material = resultSet.getString(3);
+                    row.amount = resultSet.getInt(4);
+                    row.price = resultSet.getDouble(5);
+                    row.time = resultSet.getTimestamp(6);
+                    rows.add(row);
+                }
+            }
+        }
+        if (rows.isEmpty()) return 0;
+        List<Row> fresh = dropCounted(connection, dailyTable, rows);
+        if (!fresh.isEmpty()) {
+            if (this.archive) archive(fresh);
+            saveDailyTotals(connection, dailyTable, fresh);
+        }
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM `" + logTable + "`"
+                                                                       + " WHERE `id` >= ? AND `id` <= ? AND `time` < ?")) {
+            statement.setInt(1, rows.get(0).id);
+            statement.setInt(2, rows.get(rows.size() - 1).id);
+            statement.setTimestamp(3, cutoff);
+            statement.executeUpdate();
+        }
+        return rows.size();
+    }
+
+    private static Timestamp dayOf(Timestamp time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return new Timestamp(calendar.getTimeInMillis());
+    }
+
+    private static String key(Timestamp day, String player, String material) {
+        return day.getTime() + "/" + player + "/" + material;
+    }
+
+    /**
+     * Remove the rows whose daily total already counted them, left
+     * over from a run which failed before deleting its chunk.
+     * @return the rows not counted yet
+     */
+    private static List<Row> dropCounted(Connection connection, String table, List<Row> rows) throws SQLException {
+        Timestamp minDay = null;
+        Timestamp maxDay = null;
+        for (Row row : rows) {
+            Timestamp day = dayOf(row.time);
+            if (minDay == null || day.before(minDay)) minDay = day;
+            if (maxDay == null || day.after(maxDay)) maxDay = day;
+        }
+        Map<String, Integer> lastIds = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT `day`, `player`, `material`, `last_id`"
+                                                                       + " FROM `" + table + "`"
+                                                                       + " WHERE `day` >= ? AND `day` <= ? AND `last_id` >= ?")) {
+            statement.setTimestamp(1, minDay);
+            statement.setTimestamp(2, maxDay);
+            statement.setInt(3, rows.get(0).id);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    lastIds.put(key(resultSet.getTimestamp(1), resultSet.getString(2), resultSet.getString(3)),
+                                resultSet.getInt(4));
+                }
+            }
+        }
+        if (lastIds.isEmpty()) return rows;
+        List<Row> result = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            Integer lastId = lastIds.get(key(dayOf(row.time), row.player, row.material));
+            if (lastId == null || row.id > lastId) result.add(row);
+        }
+        return result;
+    }
+
+    private static void saveDailyTotals(Connection connection, String table, List<Row> rows) throws SQLException {
+        Map<String, Row> totals = new LinkedHashMap<>();
+        for (Row row : rows) {
+            Timestamp day = dayOf(row.time);
+            Row total = totals.computeIfAbsent(key(day, row.player, row.material), k -> {
+                    Row r = new Row();
+                    r.time = day;
+                    r.player = row.player;
+                    r.material = row.material;
+                    return r;
+                });
+            total.amount += row.amount;
+            total.price += row.price;
+            total.id = Math.max(total.id, row.id);
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO `" + table + "`"
+                                              + " (`day`, `player`, `material`, `amount`, `price`, `last_id`) VALUES ");
+        for (int i = 0; i < totals.size(); i += 1) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+        }
+        sql.append(" ON DUPLICATE KEY UPDATE `amount` = `amount` + VALUES(`amount`), `price` = `price` + VALUES(`price`),"
+                   + " `last_id` = GREATEST(COALESCE(`last_id`, 0), VALUES(`last_id`))");
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Row total : totals.values()) {
+                statement.setTimestamp(index++, total.time);
+                statement.setString(index++, total.player);
+                statement.setString(index++, total.material);
+                statement.setLong(index++, total.amount);
+                statement.setDouble(index++, total.price);
+                statement.setInt(index++, total.id);
+            }
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Append rows as CSV to the archive file of their month.
+     */
+    private void archive(List<Row> rows) throws IOException {
+        File folder = new File(this.plugin.getDataFolder(), "archive");
+        folder.mkdirs();
+        SimpleDateFormat month = new SimpleDateFormat("yyyy-MM");
+        Map<String, List<Row>> months = new HashMap<>();
+        for (Row row : rows) {
+            months.computeIfAbsent(month.format(row.time), k -> new ArrayList<>()).add(row);
+        }
+        for (Map.Entry<String, List<Row>> entry : months.entrySet()) {
+            File file = new File(folder, "logs-" + entry.getKey() + ".csv.gz");
+            boolean header = !file.exists();
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file, true)),
+                                                                          StandardCharsets.UTF_8))) {
+                if (header) out.println("id,player,material,amount,price,time");
+                for (Row row : entry.getValue()) {
+                    out.println(row.id + "," + row.player + "," + row.material + "," + row.amount + ","
+                                + row.price + "," + row.time.getTime());
+                }
+                if (out.checkError()) throw new IOException("Writing " + file + " failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.cavetale.itemmerchant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Material;
+
+/**
+ * Immutable index of lower case material names, built once. Prefix
+ * completion is a binary search in the sorted names. Substring search
+ * intersects the sorted postings of every trigram in the pattern and
+ * only checks the remaining candidates with contains().
+ */
+final class MaterialNames {
+    static final int GRAM = 3;
+    private static final MaterialNames INSTANCE = new MaterialNames(Material.values());
+    private final String[] names;
+    private final Material[] materials;
+    private final List<String> nameList;
+    private final Map<String, int[]> grams;
+
+    MaterialNames(final Material[] values) {
+        Material[] sorted = values.clone();
+        Arrays.sort(sorted, (a, b) -> a.name().compareTo(b.name()));
+        this.materials = sorted;
+        this.names = new String[sorted.length];
+        for (int i = 0; i < sorted.length; i += 1) {
+            this.names[i] = sorted[i].name().toLowerCase();
+        }
+        this.nameList = List.of(this.names);
+        Map<String, List<Integer>> postings = new HashMap<>();
+        for (int i = 0; i < this.names.length; i += 1) {
+            String name = this.names[i];
+            for (int j = 0; j + GRAM <= name.length(); j += 1) {
+                List<Integer> list = postings.computeIfAbsent(name.substring(j, j + GRAM), g -> new ArrayList<>());
+                if (list.isEmpty() || list.get(list.size() - 1) != i) list.add(i);
+            }
+        }
+        this.grams = new HashMap<>(postings.size() * 2);
+        for (Map.Entry<String, List<Integer>> entry : postings.entrySet()) {
+            this.grams.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    static MaterialNames get() {
+        return INSTANCE;
+    }
+
+    /**
+     * All names starting with the prefix, in order. The list is a
+     * view of the index and must not be modified.
+     */
+    List<String> complete(String prefix) {
+        prefix = prefix.toLowerCase();
+        int from = lowerBound(prefix);
+        int to = from;
+        while (to < this.names.length && this.names[to].startsWith(prefix)) to += 1;
+        return this.nameList.subList(from, to);
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = this.names.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.names[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * All materials whose name contains the pattern, sorted by name.
+     */
+    List<Material> search(String pattern) {
+        pattern = pattern.toLowerCase();
+        List<Material> result = new ArrayList<>();
+        if (pattern.length() < GRAM) {
+            for (int i = 0; i < this.names.length; i += 1) {
+                if (this.names[i].contains(pattern)) result.add(this.materials[i]);
+            }
+            return result;
+        }
+        int[] candidates = null;
+        for (int j = 0; j + GRAM <= pattern.length(); j += 1) {
+            int[] posting = this.grams.get(pattern.substring(j, j + GRAM));
+            if (posting == null) return result;
+            candidates = candidates == null ? posting : intersect(candidates, posting);
+            if (candidates.length == 0) return result;
+        }
+        for (int i : candidates) {
+            if (this.names[i].contains(pattern)) result.add(this.materials[i]);
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i += 1;
+            } else if (a[i] > b[j]) {
+                j += 1;
+            } else {
+                result[n++] = a[i];
+                i += 1;
+                j += 1;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+}
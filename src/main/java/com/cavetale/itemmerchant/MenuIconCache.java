@@ -0,0 +1,185 @@
+package com.cavetale.itemmerchant;
+
+import com.cavetale.money.Money;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.kyori.adventure.text.Component;
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+/**
+ * Rendered sell menu icons, keyed by material or custom item
+ * fingerprint, price and amount bucket. Each bucket holds a template
+ * with the lines which do not depend on the exact amount; the rest
+ * are added to the clone handed to the caller. Main thread only.
+ */
+final class MenuIconCache {
+    /** A single item. */
+    static final int BUCKET_ONE = 0;
+    /** Less than a full stack. */
+    static final int BUCKET_PARTIAL = 1;
+    /** At least a full stack, or more than one unstackable item. */
+    static final int BUCKET_FULL = 2;
+    private static final String CL = "" + ChatColor.GREEN + ChatColor.BOLD;
+    private static final String PU = "" + ChatColor.DARK_PURPLE + ChatColor.ITALIC;
+    private static final String PR = "" + ChatColor.GREEN + ChatColor.ITALIC + ChatColor.UNDERLINE;
+    private static final Component VL = Component.text(" " + ChatColor.LIGHT_PURPLE + ChatColor.STRIKETHROUGH
+                                                       + "                                 ");
+    private final Entry[] entries = new Entry[PriceTable.MATERIALS.length];
+    private final Map<Long, Entry> custom = new HashMap<>();
+
+    /**
+     * All icons of one material at one price. The lines which do not
+     * depend on the amount are shared between icons.
+     */
+    private static final class Entry {
+        final double price;
+        final int stack;
+        final Component sellOne;
+        final Component sellOnePrice;
+        final Component sellStack;
+        final Component sellStackPrice;
+        final Component sellAll;
+        final ItemStack[] icons = new ItemStack[3];
+
+        Entry(final double price, final int stack) {
+            this.price = price;
+            this.stack = stack;
+            this.sellOne = Component.text(CL + "Left click " + ChatColor.DARK_PURPLE + "to sell one item");
+            this.sellOnePrice = Component.text("for " + PR + Money.format(price) + PU + ".");
+            this.sellStack = Component.text(CL + "Right click " + ChatColor.DARK_PURPLE + "to sell one stack");
+            this.sellStackPrice = amountPrice(stack, price);
+            this.sellAll = Component.text(CL + "Shift click " + ChatColor.DARK_PURPLE + "to sell all");
+        }
+
+        int bucket(int amount) {
+            if (amount <= 1) return BUCKET_ONE;
+            if (amount < this.stack) return BUCKET_PARTIAL;
+            return BUCKET_FULL;
+        }
+    }
+
+    ItemStack get(Material mat, double price, int amount) {
+        Entry entry = this.entries[mat.ordinal()];
+        if (entry == null || entry.price != price) {
+            entry = new Entry(price, mat.getMaxStackSize());
+            this.entries[mat.ordinal()] = entry;
+        }
+        int bucket = entry.bucket(amount);
+        ItemStack icon = entry.icons[bucket];
+        if (icon == null) {
+            icon = render(entry, new ItemStack(mat), bucket);
+            entry.icons[bucket] = icon;
+        }
+        return finish(entry, icon.clone(), bucket, amount);
+    }
+
+    /**
+     * Icon of a custom item, based on a sample of it.
+     */
+    ItemStack get(ItemStack sample, long fingerprint, double price, int amount) {
+        Entry entry = this.custom.get(fingerprint);
+        if (entry == null || entry.price != price) {
+            entry = new Entry(price, sample.getMaxStackSize());
+            this.custom.put(fingerprint, entry);
+        }
+        int bucket = entry.bucket(amount);
+        ItemStack icon = entry.icons[bucket];
+        if (icon == null) {
+            icon = render(entry, sample.clone(), bucket);
+            entry.icons[bucket] = icon;
+        }
+        return finish(entry, icon.clone(), bucket, amount);
+    }
+
+    void invalidate(Material mat) {
+        this.entries[mat.ordinal()] = null;
+    }
+
+    void invalidate(long fingerprint) {
+        this.custom.remove(fingerprint);
+    }
+
+    void clear() {
+        Arrays.fill(this.entries, null);
+        this.custom.clear();
+    }
+
+    /**
+     * Add the money a player may still earn today to the lore of an
+     * icon.
+     */
+    static ItemStack addQuota(ItemStack icon, double remaining) {
+        ItemMeta meta = icon.getItemMeta();
+        List<Component> lore = meta.lore();
+        if (lore == null) lore = new ArrayList<>();
+        lore.add(VL);
+        lore.add(Component.text(PU + "Daily limit left: " + PR + Money.format(remaining)));
+        meta.lore(lore);
+        icon.setItemMeta(meta);
+        return icon;
+    }
+
+    static ItemStack renderSellAll(int amount, double money) {
+        ItemStack icon = new ItemStack(Material.EMERALD);
+        ItemMeta meta = icon.getItemMeta();
+        meta.displayName(Component.text(CL + "Sell Everything"));
+        List<Component> lore = new ArrayList<>();
+        lore.add(Component.text(CL + "Shift click " + ChatColor.DARK_PURPLE + "to sell all items"));
+        lore.add(Component.text("(" + amount + " items) for " + PR + Money.format(money) + PU + "."));
+        meta.lore(lore);
+        icon.setItemMeta(meta);
+        return icon;
+    }
+
+    /**
+     * Render the template of a bucket.
+     */
+    private static ItemStack render(Entry entry, ItemStack icon, int bucket) {
+        icon.setAmount(1);
+        ItemMeta meta = icon.getItemMeta();
+        List<Component> lore = new ArrayList<>();
+        lore.add(entry.sellOne);
+        lore.add(entry.sellOnePrice);
+        if (bucket != BUCKET_ONE && entry.stack > 1) {
+            lore.add(VL);
+            lore.add(entry.sellStack);
+        }
+        if (bucket == BUCKET_FULL) {
+            if (entry.stack > 1) lore.add(entry.sellStackPrice);
+            lore.add(VL);
+            lore.add(entry.sellAll);
+        }
+        meta.lore(lore);
+        icon.setItemMeta(meta);
+        return icon;
+    }
+
+    /**
+     * Add the lines which depend on the exact amount to a clone of
+     * the template.
+     */
+    private static ItemStack finish(Entry entry, ItemStack icon, int bucket, int amount) {
+        if (bucket == BUCKET_ONE) return icon;
+        ItemMeta meta = icon.getItemMeta();
+        List<Component> lore = new ArrayList<>(meta.lore());
+        if (bucket == BUCKET_PARTIAL) {
+            lore.add(amountPrice(amount, entry.price));
+            lore.add(VL);
+            lore.add(entry.sellAll);
+        }
+        lore.add(amountPrice(amount, entry.price));
+        meta.lore(lore);
+        icon.setItemMeta(meta);
+        return icon;
+    }
+
+    private static Component amountPrice(int amount, double price) {
+        return Component.text("(" + amount + " items) for " + PR + Money.format(price * (double) amount) + PU + ".");
+    }
+}
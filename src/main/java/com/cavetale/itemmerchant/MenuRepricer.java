@@ -0,0 +1,60 @@
+package com.cavetale.itemmerchant;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Bring open sell menus up to date after prices change. Menus are
+ * queued and repriced one by one each tick until the time budget is
+ * spent; the rest wait for the next tick. Each menu only rewrites the
+ * slots whose price changed. Main thread only.
+ */
+final class MenuRepricer {
+    private final ItemMerchantPlugin plugin;
+    private final long budgetNanos;
+    private final ArrayDeque<SellMenu> queue = new ArrayDeque<>();
+    private BukkitTask task;
+
+    MenuRepricer(final ItemMerchantPlugin plugin, final long budgetMicros) {
+        this.plugin = plugin;
+        this.budgetNanos = Math.max(1L, budgetMicros) * 1000L;
+    }
+
+    void enable() {
+        this.task = this.plugin.getServer().getScheduler().runTaskTimer(this.plugin, this::tick, 1L, 1L);
+    }
+
+    void disable() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+        this.queue.clear();
+    }
+
+    void enqueue(Collection<SellMenu> menus) {
+        for (SellMenu menu : menus) {
+            if (menu.isRepricePending()) continue;
+            menu.setRepricePending(true);
+            this.queue.add(menu);
+        }
+    }
+
+    int getQueueSize() {
+        return this.queue.size();
+    }
+
+    private void tick() {
+        if (this.queue.isEmpty()) return;
+        long start = System.nanoTime();
+        do {
+            SellMenu menu = this.queue.poll();
+            menu.setRepricePending(false);
+            if (menu.isClosed()) continue;
+            long menuStart = System.nanoTime();
+            menu.reprice();
+            this.plugin.getMetrics().time(Metrics.Timing.REPRICE, menuStart);
+        } while (!this.queue.isEmpty() && System.nanoTime() - start < this.budgetNanos);
+    }
+}
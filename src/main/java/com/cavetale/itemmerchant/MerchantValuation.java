@@ -0,0 +1,41 @@
+package com.cavetale.itemmerchant;
+
+import java.util.Arrays;
+import java.util.Collection;
+import org.bukkit.Material;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * What items are worth at the merchant, for other plugins. Get it
+ * from the Bukkit ServicesManager. All methods may be called from
+ * any thread and read one immutable snapshot of the prices per
+ * call. The items must not be changed during the call.
+ */
+public interface MerchantValuation {
+    /**
+     * The price of one plain item of a material, or 0 if it cannot
+     * be sold.
+     */
+    double getPrice(Material material);
+
+    /**
+     * The price of one of this item, custom or plain, or 0 if it
+     * cannot be sold.
+     */
+    double getPrice(ItemStack item);
+
+    Valuation value(Collection<? extends ItemStack> items);
+
+    default Valuation value(ItemStack[] items) {
+        return value(Arrays.asList(items));
+    }
+
+    /**
+     * Value the contents of an inventory. Inventories are not thread
+     * safe; off the main thread, value a copy of the contents instead.
+     */
+    default Valuation value(Inventory inventory) {
+        return value(inventory.getContents());
+    }
+}
@@ -0,0 +1,184 @@
+package com.cavetale.itemmerchant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low overhead timers and counters. Timers keep a count, a sum, a
+ * maximum and a histogram with power of two buckets starting at one
+ * microsecond. Safe to update from any thread.
+ */
+final class Metrics {
+    static final int BUCKETS = 32;
+    private final Timer[] timers = new Timer[Timing.values().length];
+    private final AtomicInteger asyncTasks = new AtomicInteger();
+    private final LongAdder throttledClicks = new LongAdder();
+    private final LongAdder debouncedClicks = new LongAdder();
+
+    enum Timing {
+        OPEN_MENU("open_menu"),
+        MENU_CLICK("menu_click"),
+        SELL_ITEMS("sell_items"),
+        SETTLE("settle"),
+        DB_INSERT("db_insert"),
+        DB_QUERY("db_query"),
+        REPRICE("reprice");
+
+        final String key;
+
+        Timing(final String key) {
+            this.key = key;
+        }
+    }
+
+    static final class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            this.count.increment();
+            this.totalNanos.add(nanos);
+            this.maxNanos.accumulateAndGet(nanos, Math::max);
+            this.buckets.incrementAndGet(bucketOf(nanos));
+        }
+
+        /**
+         * The upper bound of the bucket containing the quantile.
+         */
+        long quantileNanos(double quantile) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i += 1) {
+                counts[i] = this.buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(quantile * (double) total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i += 1) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), this.maxNanos.get());
+            }
+            return this.maxNanos.get();
+        }
+
+        void reset() {
+            this.count.reset();
+            this.totalNanos.reset();
+            this.maxNanos.set(0);
+            for (int i = 0; i < BUCKETS; i += 1) this.buckets.set(i, 0);
+        }
+    }
+
+    Metrics() {
+        for (Timing timing : Timing.values()) {
+            this.timers[timing.ordinal()] = new Timer();
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        int bits = 64 - Long.numberOfLeadingZeros(nanos >> 10);
+        return Math.min(BUCKETS - 1, bits);
+    }
+
+    static long upperBound(int bucket) {
+        return 1L << (bucket + 10);
+    }
+
+    /**
+     * Record the time elapsed since start, as returned by
+     * System.nanoTime().
+     */
+    void time(Timing timing, long start) {
+        this.timers[timing.ordinal()].record(System.nanoTime() - start);
+    }
+
+    void asyncTaskQueued() {
+        this.asyncTasks.incrementAndGet();
+    }
+
+    void asyncTaskDone() {
+        this.asyncTasks.decrementAndGet();
+    }
+
+    void clickThrottled() {
+        this.throttledClicks.increment();
+    }
+
+    void clickDebounced() {
+        this.debouncedClicks.increment();
+    }
+
+    void reset() {
+        for (Timer timer : this.timers) timer.reset();
+        this.throttledClicks.reset();
+        this.debouncedClicks.reset();
+    }
+
+    List<String> getStats(int logQueueDepth) {
+        List<String> result = new ArrayList<>();
+        for (Timing timing : Timing.values()) {
+            Timer timer = this.timers[timing.ordinal()];
+            long count = timer.count.sum();
+            long avg = count > 0 ? timer.totalNanos.sum() / count : 0;
+            result.add(timing.key + ": " + count + "x"
+                       + " avg " + fmtMillis(avg) + "ms"
+                       + " p50 " + fmtMillis(timer.quantileNanos(0.5)) + "ms"
+                       + " p99 " + fmtMillis(timer.quantileNanos(0.99)) + "ms"
+                       + " max " + fmtMillis(timer.maxNanos.get()) + "ms");
+        }
+        result.add("Async tasks: " + this.asyncTasks.get() + ", log queue: " + logQueueDepth);
+        result.add("Clicks throttled: " + this.throttledClicks.sum() + ", debounced: " + this.debouncedClicks.sum());
+        return result;
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format. The file is
+     * replaced atomically so a scraper never sees half of it.
+     */
+    void write(File file, int logQueueDepth) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp.toPath()))) {
+            for (Timing timing : Timing.values()) {
+                Timer timer = this.timers[timing.ordinal()];
+                String name = "itemmerchant_" + timing.key + "_seconds";
+                out.println("# TYPE " + name + " summary");
+                out.println(name + "{quantile=\"0.5\"} " + seconds(timer.quantileNanos(0.5)));
+                out.println(name + "{quantile=\"0.99\"} " + seconds(timer.quantileNanos(0.99)));
+                out.println(name + "_sum " + seconds(timer.totalNanos.sum()));
+                out.println(name + "_count " + timer.count.sum());
+                out.println("# TYPE " + name + "_max gauge");
+                out.println(name + "_max " + seconds(timer.maxNanos.get()));
+            }
+            out.println("# TYPE itemmerchant_async_tasks gauge");
+            out.println("itemmerchant_async_tasks " + this.asyncTasks.get());
+            out.println("# TYPE itemmerchant_log_queue_depth gauge");
+            out.println("itemmerchant_log_queue_depth " + logQueueDepth);
+            out.println("# TYPE itemmerchant_clicks_throttled_total counter");
+            out.println("itemmerchant_clicks_throttled_total " + this.throttledClicks.sum());
+            out.println("# TYPE itemmerchant_clicks_debounced_total counter");
+            out.println("itemmerchant_clicks_debounced_total " + this.debouncedClicks.sum());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString((double) nanos / 1000000000.0);
+    }
+
+    private static String fmtMillis(long nanos) {
+        return String.format("%.03f", (double) nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,17 @@
+package com.cavetale.itemmerchant;
+
+import lombok.RequiredArgsConstructor;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+@RequiredArgsConstructor
+final class PlayerListener implements Listener {
+    private final ItemMerchantPlugin plugin;
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onPlayerQuit(PlayerQuitEvent event) {
+        this.plugin.onPlayerQuit(event.getPlayer());
+    }
+}
@@ -0,0 +1,63 @@
+package com.cavetale.itemmerchant;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Map;
+import org.bukkit.Material;
+
+/**
+ * Compact binary copy of the price table in the data folder, so the
+ * merchant can open before the database has answered. Layout: magic,
+ * version, entry count, then material name and price per entry.
+ */
+final class PriceSnapshot {
+    static final int MAGIC = 0x494d5053;
+    static final int VERSION = 1;
+
+    private PriceSnapshot() { }
+
+    /**
+     * @return the prices, or null if there is no snapshot
+     */
+    static PriceTable load(File file) throws IOException {
+        if (!file.isFile()) return null;
+        Map<Material, Double> prices = new EnumMap<>(Material.class);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a price snapshot: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unknown snapshot version: " + version);
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                String name = in.readUTF();
+                double price = in.readDouble();
+                Material mat = Material.getMaterial(name);
+                if (mat == null || !PriceTable.isValidPrice(price)) continue;
+                prices.put(mat, price);
+            }
+        }
+        return PriceTable.of(prices);
+    }
+
+    static void save(File file, PriceTable table) throws IOException {
+        Map<Material, Double> prices = new EnumMap<>(Material.class);
+        table.forEach(prices::put);
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(prices.size());
+            for (Map.Entry<Material, Double> entry : prices.entrySet()) {
+                out.writeUTF(entry.getKey().name());
+                out.writeDouble(entry.getValue());
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,97 @@
+package com.cavetale.itemmerchant;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Material;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Pick up price changes made by other servers sharing the database.
+ * Each poll only fetches rows updated since the newest update seen
+ * so far, minus some overlap to tolerate clock differences between
+ * servers. Rows are applied on the main thread in one swap of the
+ * price table; unchanged prices are skipped, and so are rows older
+ * than a change made on this server, which a poll may have fetched
+ * before that change was saved.
+ */
+final class PriceSync {
+    static final long OVERLAP = 60L * 1000L;
+    private final ItemMerchantPlugin plugin;
+    private long lastSeen;
+    /** Time of the last change saved by this server, by ordinal. */
+    private final long[] localWrites = new long[PriceTable.MATERIALS.length];
+    private boolean polling;
+    private BukkitTask task;
+
+    PriceSync(final ItemMerchantPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    void enable(long interval) {
+        this.task = this.plugin.getServer().getScheduler().runTaskTimer(this.plugin, this::poll, interval, interval);
+    }
+
+    void disable() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+    }
+
+    void seen(Date updated) {
+        if (updated != null && updated.getTime() > this.lastSeen) this.lastSeen = updated.getTime();
+    }
+
+    /**
+     * Remember a change made on this server.
+     * @param updated the time saved with the row
+     */
+    void wroteLocally(Material mat, long updated) {
+        // DATETIME columns may drop the milliseconds
+        long seconds = updated / 1000L * 1000L;
+        this.localWrites[mat.ordinal()] = Math.max(this.localWrites[mat.ordinal()], seconds);
+    }
+
+    void poll() {
+        if (this.polling) return;
+        this.polling = true;
+        final Date since = new Date(this.lastSeen - OVERLAP);
+        this.plugin.runAsync(() -> {
+                List<SQLPrice> rows = null;
+                long start = System.nanoTime();
+                try {
+                    rows = this.plugin.getSqlDatabase().find(SQLPrice.class).gt("updated", since).findList();
+                    this.plugin.getMetrics().time(Metrics.Timing.DB_QUERY, start);
+                } catch (Exception e) {
+                    this.plugin.getLogger().warning("Polling prices: " + e.getMessage());
+                }
+                final List<SQLPrice> result = rows;
+                this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                        this.polling = false;
+                        if (result != null) apply(result);
+                    });
+            });
+    }
+
+    private void apply(List<SQLPrice> rows) {
+        PriceTable prices = this.plugin.getPriceTable();
+        Map<Material, Double> changes = new EnumMap<>(Material.class);
+        for (SQLPrice row : rows) {
+            seen(row.getUpdated());
+            Material mat = Material.getMaterial(row.getMaterial().toUpperCase());
+            if (mat == null) continue;
+            if (!PriceTable.isValidPrice(row.getPrice())) {
+                this.plugin.getLogger().warning("Invalid price: " + row.getMaterial() + ": " + row.getPrice());
+                continue;
+            }
+            if (row.getUpdated() == null || row.getUpdated().getTime() < this.localWrites[mat.ordinal()]) continue;
+            if (row.getPrice() == prices.get(mat)) continue;
+            changes.put(mat, row.getPrice());
+        }
+        if (changes.isEmpty()) return;
+        this.plugin.applyPriceChanges(changes);
+        this.plugin.getLogger().info("Synchronized " + changes.size() + " prices from the database");
+    }
+}
@@ -0,0 +1,95 @@
+package com.cavetale.itemmerchant;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.ObjDoubleConsumer;
+import org.bukkit.Material;
+
+/**
+ * Immutable material prices indexed by ordinal. Changes produce a
+ * new table, so a reference obtained from any thread stays valid and
+ * consistent without locking. A price explicitly set to 0 is kept
+ * apart from one never set.
+ */
+final class PriceTable {
+    static final Material[] MATERIALS = Material.values();
+    static final PriceTable EMPTY = new PriceTable(new double[MATERIALS.length], new boolean[MATERIALS.length]);
+    private final double[] prices;
+    private final boolean[] set;
+
+    private PriceTable(final double[] prices, final boolean[] set) {
+        this.prices = prices;
+        this.set = set;
+    }
+
+    static PriceTable of(Map<Material, Double> map) {
+        return EMPTY.with(map);
+    }
+
+    double get(Material mat) {
+        return this.prices[mat.ordinal()];
+    }
+
+    double get(int ordinal) {
+        return this.prices[ordinal];
+    }
+
+    PriceTable with(Material mat, double price) {
+        checkPrice(price);
+        double[] copy = Arrays.copyOf(this.prices, this.prices.length);
+        boolean[] setCopy = Arrays.copyOf(this.set, this.set.length);
+        int ordinal = Objects.requireNonNull(mat, "Material cannot be null!").ordinal();
+        copy[ordinal] = price;
+        setCopy[ordinal] = true;
+        return new PriceTable(copy, setCopy);
+    }
+
+    PriceTable with(Map<Material, Double> map) {
+        double[] copy = Arrays.copyOf(this.prices, this.prices.length);
+        boolean[] setCopy = Arrays.copyOf(this.set, this.set.length);
+        for (Map.Entry<Material, Double> entry : map.entrySet()) {
+            checkPrice(entry.getValue());
+            int ordinal = Objects.requireNonNull(entry.getKey(), "Material cannot be null!").ordinal();
+            copy[ordinal] = entry.getValue();
+            setCopy[ordinal] = true;
+        }
+        return new PriceTable(copy, setCopy);
+    }
+
+    /**
+     * Multiply every price by the factor of the same ordinal, rounded
+     * to cents. Prices which can be sold stay at 0.01 or above.
+     */
+    PriceTable scaled(double[] factors) {
+        double[] result = new double[this.prices.length];
+        for (int i = 0; i < result.length; i += 1) {
+            double price = this.prices[i];
+            if (price < 0.01) {
+                result[i] = price;
+                continue;
+            }
+            result[i] = Math.max(0.01, (double) Math.round(price * factors[i] * 100.0) / 100.0);
+        }
+        return new PriceTable(result, this.set);
+    }
+
+    /**
+     * Visit every material with a price set, including 0.
+     */
+    void forEach(ObjDoubleConsumer<Material> consumer) {
+        for (int i = 0; i < this.prices.length; i += 1) {
+            if (this.set[i]) consumer.accept(MATERIALS[i], this.prices[i]);
+        }
+    }
+
+    static boolean isValidPrice(double price) {
+        return price >= 0 && !Double.isInfinite(price);
+    }
+
+    static void checkPrice(double price) {
+        if (price < 0) throw new IllegalArgumentException("Price cannot be negative!");
+        if (Double.isNaN(price)) throw new IllegalArgumentException("Price cannot be NaN!");
+        if (Double.isInfinite(price)) throw new IllegalArgumentException("Price cannot be infinite!");
+    }
+}
@@ -0,0 +1,158 @@
+package com.cavetale.itemmerchant;
+
+import com.winthier.sql.SQLDatabase;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Aggregate sale logs with GROUP BY in the database. Meant to be
+ * run off the main thread. The oldest hour of the logs is included
+ * in full, so the answer matches the one from SalesWindow. Logs
+ * compacted by LogRetention are read from the daily totals, whose
+ * oldest day is included in full.
+ */
+@Getter @Setter @RequiredArgsConstructor
+final class RankQuery {
+    static final int PAGE_SIZE = 20;
+    private final What what;
+    private Date since;
+    private String material;
+    private UUID player;
+    private int page = 0;
+
+    enum What {
+        ITEMS("material"),
+        PLAYERS("player");
+
+        final String column;
+
+        What(final String column) {
+            this.column = column;
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Entry {
+        final String key;
+        final long amount;
+        final double money;
+    }
+
+    @RequiredArgsConstructor
+    static final class Result {
+        final int total;
+        final int page;
+        final List<Entry> entries;
+
+        int getPageCount() {
+            return (this.total - 1) / PAGE_SIZE + 1;
+        }
+    }
+
+    Result fetch(SQLDatabase db) throws SQLException {
+        return fetch(db.getConnection(),
+                     db.getTable(SQLLog.class).getTableName(),
+                     db.getTable(SQLDailySales.class).getTableName());
+    }
+
+    Result fetch(Connection connection, String table) throws SQLException {
+        return fetch(connection, table, null);
+    }
+
+    /**
+     * @param dailyTable the table of daily totals, or null to only
+     * read the logs
+     */
+    Result fetch(Connection connection, String table, String dailyTable) throws SQLException {
+        String key = "`" + this.what.column + "`";
+        List<Object> params = new ArrayList<>();
+        String source = "`" + table + "`" + where("time", params);
+        if (dailyTable != null) {
+            source = "(SELECT `player`, `material`, `amount`, `price` FROM " + source
+                + " UNION ALL SELECT `player`, `material`, `amount`, `price` FROM `" + dailyTable + "`"
+                + where("day", params) + ") AS `sales`";
+        }
+        String grouped = "FROM " + source
+            + " GROUP BY " + key
+            + " HAVING SUM(`amount`) > 0 AND SUM(`price`) > 0";
+        final int total;
+        try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM (SELECT " + key + " "
+                                                                       + grouped + ") AS `groups`")) {
+            bind(statement, params);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                total = resultSet.next() ? resultSet.getInt(1) : 0;
+            }
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT " + key + ", SUM(`amount`), SUM(`price`) "
+                                                                       + grouped
+                                                                       + " ORDER BY SUM(`price`) DESC"
+                                                                       + " LIMIT ? OFFSET ?")) {
+            int index = bind(statement, params);
+            statement.setInt(index++, PAGE_SIZE);
+            statement.setInt(index++, this.page * PAGE_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    entries.add(new Entry(resultSet.getString(1), resultSet.getLong(2), resultSet.getDouble(3)));
+                }
+            }
+        }
+        return new Result(total, this.page, entries);
+    }
+
+    /**
+     * The WHERE clause of these filters, or an empty string. Log
+     * times start at the hour of since, days at its day.
+     * @param timeColumn time for the logs, day for the daily totals
+     */
+    String where(String timeColumn, List<Object> params) {
+        StringBuilder where = new StringBuilder();
+        if (this.since != null) {
+            if (timeColumn.equals("day")) {
+                where.append(" WHERE `day` >= ?");
+                params.add(new Timestamp(startOfDay(this.since.getTime())));
+            } else {
+                where.append(" WHERE `time` >= ?");
+                params.add(new Timestamp(this.since.getTime() / SalesWindow.HOUR * SalesWindow.HOUR));
+            }
+        }
+        if (this.material != null) {
+            where.append(where.length() == 0 ? " WHERE" : " AND").append(" `material` = ?");
+            params.add(this.material);
+        }
+        if (this.player != null) {
+            where.append(where.length() == 0 ? " WHERE" : " AND").append(" `player` = ?");
+            params.add(this.player.toString());
+        }
+        return where.toString();
+    }
+
+    private static long startOfDay(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static int bind(PreparedStatement statement, List<Object> params) throws SQLException {
+        int index = 1;
+        for (Object param : params) {
+            statement.setObject(index++, param);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,35 @@
+package com.cavetale.itemmerchant;
+
+import com.winthier.sql.SQLRow;
+import java.util.Date;
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import lombok.Data;
+
+/**
+ * Sale totals per day, player and material, compacted from old rows
+ * of SQLLog by LogRetention.
+ */
+@Data
+@Table(name = "daily_sales",
+       uniqueConstraints = @UniqueConstraint(name = "day_player_material",
+                                             columnNames = {"day", "player", "material"}),
+       indexes = {@Index(columnList = "player"),
+                  @Index(columnList = "material")})
+public final class SQLDailySales implements SQLRow {
+    @Id Integer id;
+    /** Midnight at the start of the day, server time. */
+    @Column(nullable = false) Date day;
+    @Column(nullable = false) UUID player;
+    @Column(nullable = false, length = 64) String material;
+    @Column(nullable = false) Long amount;
+    @Column(nullable = false) Double price;
+    /** Highest SQLLog id counted, so a chunk is never counted twice. Null in old rows. */
+    @Column(nullable = true) Integer lastId;
+
+    public SQLDailySales() { }
+}
@@ -0,0 +1,39 @@
+package com.cavetale.itemmerchant;
+
+import com.winthier.sql.SQLRow;
+import java.util.Date;
+import java.util.Objects;
+import javax.persistence.Column;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import lombok.Data;
+import org.bukkit.Material;
+
+/**
+ * Price of a custom item, identified by its ItemFingerprint. The name
+ * is chosen by an admin and used in sale logs in place of the
+ * material.
+ */
+@Data
+@Table(name = "item_prices",
+       uniqueConstraints = @UniqueConstraint(name = "fingerprint",
+                                             columnNames = {"fingerprint"}))
+public final class SQLItemPrice implements SQLRow {
+    @Id Integer id;
+    @Column(nullable = false) Long fingerprint;
+    @Column(nullable = false, length = 64) String name;
+    @Column(nullable = false, length = 64) String material;
+    @Column(nullable = false) Double price;
+    @Column(nullable = false) Date updated;
+
+    public SQLItemPrice() { }
+
+    SQLItemPrice(final long fingerprint, final String name, final Material material, final double price) {
+        this.fingerprint = fingerprint;
+        this.name = Objects.requireNonNull(name);
+        this.material = material.name().toLowerCase();
+        this.price = price;
+        this.updated = new Date();
+    }
+}
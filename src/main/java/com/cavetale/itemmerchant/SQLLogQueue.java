@@ -0,0 +1,287 @@
+package com.cavetale.itemmerchant;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import lombok.Getter;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Write-behind queue for sale logs. Rows are collected on the main
+ * thread and written as multi-row inserts, either once a full batch
+ * is waiting or when the flush interval expires. With a journal,
+ * rows go to the journal file instead of memory and are read back
+ * from there, so a slow or missing database costs disk space rather
+ * than memory, and nothing is lost on a crash. After a failed insert,
+ * flushes back off exponentially up to MAX_BACKOFF.
+ */
+final class SQLLogQueue {
+    static final long MIN_BACKOFF = 1000L;
+    static final long MAX_BACKOFF = 60000L;
+    private final ItemMerchantPlugin plugin;
+    private final BlockingQueue<SQLLog> queue;
+    /** Null if disabled or not available. */
+    private volatile SaleJournal journal;
+    @Getter private final int capacity;
+    @Getter private final int batchSize;
+    @Getter private final long flushInterval;
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private BukkitTask task;
+    /** Epoch millis before which no flush is attempted. */
+    private volatile long retryAfter;
+    private long backoff;
+    // Stats
+    private final AtomicLong totalRows = new AtomicLong();
+    private final AtomicLong totalBatches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int lastBatchSize;
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+
+    SQLLogQueue(final ItemMerchantPlugin plugin, final int capacity, final int batchSize, final long flushInterval,
+                final SaleJournal journal) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive");
+        if (flushInterval < 1) throw new IllegalArgumentException("flushInterval must be positive");
+        this.plugin = plugin;
+        this.capacity = capacity;
+        this.batchSize = Math.min(batchSize, capacity);
+        this.flushInterval = flushInterval;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.journal = journal;
+    }
+
+    void enable() {
+        if (this.journal != null) {
+            try {
+                int replay = this.journal.open();
+                if (replay > 0) this.plugin.getLogger().info("Replaying " + replay + " sale logs from the journal");
+            } catch (IOException ioe) {
+                this.plugin.getLogger().log(Level.SEVERE, "Opening sale journal, keeping logs in memory", ioe);
+                this.journal = null;
+            }
+        }
+        this.task = this.plugin.getServer().getScheduler()
+            .runTaskTimerAsynchronously(this.plugin, this::flush, this.flushInterval, this.flushInterval);
+    }
+
+    /**
+     * Stop the timer and write everything that is still queued. This
+     * blocks the calling thread and is meant for onDisable.
+     */
+    void disable() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.task = null;
+        }
+        this.retryAfter = 0L;
+        flush();
+        if (!this.queue.isEmpty()) {
+            this.plugin.getLogger().severe("Lost " + this.queue.size() + " sale logs on shutdown");
+        }
+        if (this.journal != null) {
+            int pending = this.journal.getPending();
+            if (pending > 0) this.plugin.getLogger().warning("Keeping " + pending + " sale logs in the journal");
+            try {
+                this.journal.close();
+            } catch (IOException ioe) {
+                this.plugin.getLogger().log(Level.SEVERE, "Closing sale journal", ioe);
+            }
+        }
+    }
+
+    void add(SQLLog row) {
+        if (this.journal != null) {
+            try {
+                this.journal.append(row);
+                if (this.journal.getPending() >= this.batchSize) scheduleFlush();
+                return;
+            } catch (IOException ioe) {
+                this.plugin.getLogger().log(Level.SEVERE, "Writing sale journal, keeping logs in memory", ioe);
+                this.journal = null;
+            }
+        }
+        if (!this.queue.offer(row)) {
+            // Sales are refused while the queue is full, see isFull,
+            // so this only happens when a settlement overshoots.
+            if (this.dropped.getAndIncrement() == 0L) {
+                this.plugin.getLogger().severe("Sale log queue is full, dropping sale logs");
+            }
+            return;
+        }
+        if (this.queue.size() >= this.batchSize) scheduleFlush();
+    }
+
+    /**
+     * True if no more sale logs fit into memory. New sales should be
+     * refused until the database catches up. Never true with a
+     * journal.
+     */
+    boolean isFull() {
+        return this.journal == null && this.queue.remainingCapacity() == 0;
+    }
+
+    interface PendingRead<T> {
+        T read(List<SQLLog> pending) throws SQLException;
+    }
+
+    /**
+     * Run a database read while no flush is in progress, together
+     * with the rows of one player which have not reached the database
+     * yet, from memory and the journal. Every row logged before the
+     * call is either in the database or among the pending rows, never
+     * both. Blocks, so never call this on the main thread.
+     */
+    <T> T readWithPending(UUID player, PendingRead<T> read) throws SQLException, IOException {
+        synchronized (this.flushLock) {
+            List<SQLLog> pending = new ArrayList<>();
+            for (SQLLog row : this.queue) {
+                if (player.equals(row.getPlayer())) pending.add(row);
+            }
+            SaleJournal j = this.journal;
+            if (j != null) {
+                long position = j.getReadPosition();
+                while (true) {
+                    SaleJournal.Batch batch = j.read(position, this.batchSize);
+                    if (batch.isEmpty()) break;
+                    for (SQLLog row : batch.rows) {
+                        if (player.equals(row.getPlayer())) pending.add(row);
+                    }
+                    position = batch.end;
+                }
+            }
+            return read.read(pending);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (this.task == null) return;
+        if (System.currentTimeMillis() < this.retryAfter) return;
+        if (!this.flushPending.compareAndSet(false, true)) return;
+        this.plugin.runAsync(this::flush);
+    }
+
+    /**
+     * Drain the queue in batches until it is empty or a batch fails.
+     * Failed rows are put back to be retried after the backoff.
+     */
+    void flush() {
+        this.flushPending.set(false);
+        if (System.currentTimeMillis() < this.retryAfter) return;
+        synchronized (this.flushLock) {
+            SaleJournal j = this.journal;
+            if (j != null && !flushJournal(j)) {
+                onFailure();
+                return;
+            }
+            while (!this.queue.isEmpty()) {
+                List<SQLLog> batch = new ArrayList<>(this.batchSize);
+                this.queue.drainTo(batch, this.batchSize);
+                if (batch.isEmpty()) break;
+                long start = System.nanoTime();
+                try {
+                    this.plugin.getSqlDatabase().insert(batch);
+                } catch (Exception e) {
+                    this.failedBatches.incrementAndGet();
+                    this.plugin.getLogger().warning("Inserting " + batch.size() + " sale logs: " + e.getMessage());
+                    int lost = 0;
+                    for (SQLLog row : batch) {
+                        if (!this.queue.offer(row)) lost += 1;
+                    }
+                    if (lost > 0) {
+                        this.dropped.addAndGet(lost);
+                        this.plugin.getLogger().severe("Dropped " + lost + " sale logs");
+                    }
+                    onFailure();
+                    return;
+                }
+                recordBatch(batch.size(), start);
+            }
+            this.backoff = 0L;
+        }
+    }
+
+    /**
+     * Wait before the next attempt, twice as long as last time.
+     */
+    private void onFailure() {
+        this.backoff = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, this.backoff * 2L));
+        this.retryAfter = System.currentTimeMillis() + this.backoff;
+    }
+
+    /**
+     * Insert the journal in batches and acknowledge each one.
+     * @return true if the journal is now empty
+     */
+    private boolean flushJournal(SaleJournal j) {
+        try {
+            j.force();
+            while (true) {
+                SaleJournal.Batch batch = j.read(this.batchSize);
+                if (batch.isEmpty()) return true;
+                if (batch.rows.isEmpty()) {
+                    j.acknowledge(batch);
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    this.plugin.getSqlDatabase().insert(batch.rows);
+                } catch (Exception e) {
+                    this.failedBatches.incrementAndGet();
+                    this.plugin.getLogger().warning("Inserting " + batch.rows.size() + " sale logs from journal: "
+                                                    + e.getMessage());
+                    return false;
+                }
+                j.acknowledge(batch);
+                recordBatch(batch.rows.size(), start);
+            }
+        } catch (IOException ioe) {
+            this.plugin.getLogger().log(Level.SEVERE, "Reading sale journal", ioe);
+            return false;
+        }
+    }
+
+    private void recordBatch(int size, long start) {
+        this.plugin.getMetrics().time(Metrics.Timing.DB_INSERT, start);
+        long nanos = System.nanoTime() - start;
+        this.lastBatchSize = size;
+        this.lastFlushNanos = nanos;
+        if (nanos > this.maxFlushNanos) this.maxFlushNanos = nanos;
+        this.totalRows.addAndGet(size);
+        this.totalBatches.incrementAndGet();
+    }
+
+    int getDepth() {
+        SaleJournal j = this.journal;
+        return this.queue.size() + (j != null ? j.getPending() : 0);
+    }
+
+    List<String> getStats() {
+        List<String> result = new ArrayList<>();
+        result.add("Queue depth: " + this.queue.size() + "/" + this.capacity);
+        SaleJournal j = this.journal;
+        result.add("Journal: " + (j != null ? j.getPending() + " sale logs" : "off"));
+        result.add("Batch size: " + this.batchSize + ", flush interval: " + this.flushInterval + " ticks");
+        result.add("Last batch: " + this.lastBatchSize + " rows in " + fmtMillis(this.lastFlushNanos) + "ms"
+                   + ", max " + fmtMillis(this.maxFlushNanos) + "ms");
+        result.add("Total: " + this.totalRows.get() + " rows in " + this.totalBatches.get() + " batches"
+                   + ", " + this.failedBatches.get() + " failed"
+                   + ", " + this.dropped.get() + " dropped");
+        long wait = this.retryAfter - System.currentTimeMillis();
+        if (wait > 0L) result.add("Retrying in " + (wait / 1000L) + "s");
+        return result;
+    }
+
+    private static String fmtMillis(long nanos) {
+        return String.format("%.02f", (double) nanos / 1000000.0);
+    }
+}
@@ -1,9 +1,11 @@
 package com.cavetale.itemmerchant;
 
 import com.winthier.sql.SQLRow;
+import java.util.Date;
 import java.util.Objects;
 import javax.persistence.Column;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
 import lombok.Data;
@@ -12,17 +14,21 @@ import org.bukkit.Material;
 @Data
 @Table(name = "prices",
        uniqueConstraints = @UniqueConstraint(name = "material",
-                                             columnNames = {"material"}))
+                                             columnNames = {"material"}),
+       indexes = @Index(columnList = "updated"))
 public final class SQLPrice implements SQLRow {
     @Id Integer id;
     @Column(nullable = false, length = 64) String material;
     @Column(nullable = false) Double price;
+    /** Last change, for other servers to pick up. Null in old rows. */
+    @Column(nullable = true) Date updated;
 
     public SQLPrice() { }
 
     SQLPrice(final String material, final double price) {
         this.material = Objects.requireNonNull(material);
         this.price = price;
+        this.updated = new Date();
     }
 
     SQLPrice(final Material material, final double price) {
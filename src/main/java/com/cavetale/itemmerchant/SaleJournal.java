@@ -0,0 +1,296 @@
+package com.cavetale.itemmerchant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Append-only file of sale logs which have not reached the database
+ * yet. Sales are appended on the main thread, which only costs a
+ * write to the page cache. The log queue reads them back in batches
+ * from the oldest unacknowledged record, and once every record is
+ * in the database, the file is truncated. After a crash, the records
+ * still in the file are replayed on the next start. Delivery is at
+ * least once: a crash right after an insert may repeat that batch.
+ *
+ * Record: int length, long uuid msb, long uuid lsb, long time, int
+ * amount, double price, short material length, material UTF-8.
+ *
+ * A record whose length does not add up breaks the framing of
+ * everything after it. That rest of the file is moved to a
+ * quarantine file next to the journal, with a warning, and the
+ * records before it are kept. A well framed record with invalid
+ * values is logged and skipped.
+ */
+final class SaleJournal {
+    static final int HEADER = 4;
+    static final int FIXED = 8 + 8 + 8 + 4 + 8 + 2;
+    static final int MAX_MATERIAL = 256;
+    static final int READ_BUFFER = 64 * 1024;
+    private final File file;
+    private final Logger logger;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(HEADER + FIXED + MAX_MATERIAL);
+    private FileChannel channel;
+    /** End of the last complete record. */
+    private volatile long writePosition;
+    /** Start of the oldest record not yet in the database. */
+    private volatile long readPosition;
+    /** Records between readPosition and writePosition. */
+    private int pending;
+
+    static final class Batch {
+        final List<SQLLog> rows = new ArrayList<>();
+        /** Invalid records passed over. */
+        int skipped;
+        long end;
+
+        boolean isEmpty() {
+            return this.rows.isEmpty() && this.skipped == 0;
+        }
+    }
+
+    SaleJournal(final File file, final Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Open the file and count the records left from last time. An
+     * incomplete record at the end, from a crash during a write, is
+     * cut off. A broken record is quarantined with everything after
+     * it.
+     * @return the number of records to replay
+     */
+    synchronized int open() throws IOException {
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.readPosition = 0L;
+        long position = 0L;
+        int count = 0;
+        long size = this.channel.size();
+        ByteBuffer record = ByteBuffer.allocate(HEADER + FIXED + MAX_MATERIAL);
+        while (position + HEADER <= size) {
+            record.clear().limit(HEADER);
+            readFully(record, position);
+            int length = record.getInt(0);
+            if (!isValidLength(length)) {
+                this.writePosition = size;
+                quarantine(position);
+                size = position;
+                break;
+            }
+            if (position + HEADER + length > size) break;
+            record.limit(HEADER + length);
+            readFully(record, position);
+            if (!isValidFrame(record, 0)) {
+                this.writePosition = size;
+                quarantine(position);
+                size = position;
+                break;
+            }
+            position += HEADER + length;
+            count += 1;
+        }
+        if (position < size) {
+            this.logger.warning("Cutting off incomplete sale journal record at " + position);
+            this.channel.truncate(position);
+        }
+        this.writePosition = position;
+        this.pending = count;
+        return count;
+    }
+
+    /**
+     * Fill the buffer from its position on, which is also the offset
+     * from position in the file.
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of sale journal at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private static boolean isValidLength(int length) {
+        return length >= FIXED && length <= FIXED + MAX_MATERIAL;
+    }
+
+    /**
+     * Check that the material length of a record matches its total
+     * length.
+     * @param start the start of the record header in the buffer
+     */
+    private static boolean isValidFrame(ByteBuffer buffer, int start) {
+        int length = buffer.getInt(start);
+        return isValidLength(length) && buffer.getShort(start + HEADER + FIXED - 2) == length - FIXED;
+    }
+
+    /**
+     * Move everything from position to the end of the file into a
+     * quarantine file and cut it off. The records before position
+     * are kept.
+     */
+    private synchronized void quarantine(long position) throws IOException {
+        long end = this.writePosition;
+        File target = new File(this.file.getParentFile(), this.file.getName() + "." + System.currentTimeMillis() + ".corrupt");
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long copied = 0L;
+            while (copied < end - position) {
+                copied += this.channel.transferTo(position + copied, end - position - copied, out);
+            }
+        }
+        this.channel.truncate(position);
+        this.writePosition = position;
+        this.logger.severe("Broken sale journal record at " + position + ", moved " + (end - position)
+                           + " bytes to " + target);
+        // Count again what is left to replay.
+        int count = 0;
+        long at = this.readPosition;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (at < position) {
+            header.clear();
+            readFully(header, at);
+            at += HEADER + header.getInt(0);
+            count += 1;
+        }
+        this.pending = count;
+    }
+
+    synchronized void close() throws IOException {
+        if (this.channel == null) return;
+        this.channel.force(false);
+        this.channel.close();
+        this.channel = null;
+    }
+
+    synchronized void append(SQLLog row) throws IOException {
+        byte[] material = row.getMaterial().getBytes(StandardCharsets.UTF_8);
+        if (material.length > MAX_MATERIAL) throw new IllegalArgumentException("material too long: " + row.getMaterial());
+        ByteBuffer buffer = this.writeBuffer;
+        buffer.clear();
+        buffer.putInt(FIXED + material.length);
+        buffer.putLong(row.getPlayer().getMostSignificantBits());
+        buffer.putLong(row.getPlayer().getLeastSignificantBits());
+        buffer.putLong(row.getTime().getTime());
+        buffer.putInt(row.getAmount());
+        buffer.putDouble(row.getPrice());
+        buffer.putShort((short) material.length);
+        buffer.put(material);
+        buffer.flip();
+        long position = this.writePosition;
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+        this.writePosition = position;
+        this.pending += 1;
+    }
+
+    synchronized int getPending() {
+        return this.pending;
+    }
+
+    /**
+     * Flush written records to the storage device.
+     */
+    void force() throws IOException {
+        FileChannel c = this.channel;
+        if (c != null) c.force(false);
+    }
+
+    /**
+     * Read up to max records, starting with the oldest one not yet
+     * acknowledged. Only called by the thread holding the log queue's
+     * flush lock.
+     */
+    Batch read(int max) throws IOException {
+        return read(this.readPosition, max);
+    }
+
+    long getReadPosition() {
+        return this.readPosition;
+    }
+
+    /**
+     * Read up to max records, starting at a position returned by
+     * getReadPosition or Batch.end. Same locking as read(int).
+     * Invalid records are skipped and counted in the batch. A broken
+     * record is quarantined with everything after it, so the batch
+     * then ends before it.
+     */
+    Batch read(long position, int max) throws IOException {
+        Batch batch = new Batch();
+        long end = this.writePosition;
+        batch.end = position;
+        if (position >= end) return batch;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min((long) READ_BUFFER, end - position));
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        while (batch.rows.size() < max && buffer.remaining() >= HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (!isValidLength(length) || (buffer.remaining() >= HEADER + length && !isValidFrame(buffer, start))) {
+                quarantine(batch.end);
+                break;
+            }
+            if (buffer.remaining() < HEADER + length) break;
+            buffer.position(start + HEADER);
+            SQLLog row = decode(buffer, length - FIXED);
+            if (row != null) {
+                batch.rows.add(row);
+            } else {
+                this.logger.warning("Skipping invalid sale journal record at " + batch.end);
+                batch.skipped += 1;
+            }
+            batch.end += HEADER + length;
+        }
+        return batch;
+    }
+
+    /**
+     * Decode the body of a well framed record.
+     * @return the row, or null if its values are invalid
+     */
+    static SQLLog decode(ByteBuffer buffer, int materialLength) {
+        UUID player = new UUID(buffer.getLong(), buffer.getLong());
+        long time = buffer.getLong();
+        int amount = buffer.getInt();
+        double price = buffer.getDouble();
+        buffer.getShort();
+        byte[] material = new byte[materialLength];
+        buffer.get(material);
+        if (materialLength == 0 || !Double.isFinite(price)) return null;
+        try {
+            SQLLog row = new SQLLog(player, new String(material, StandardCharsets.UTF_8), amount, price);
+            row.setTime(new Date(time));
+            return row;
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    /**
+     * Mark a batch as written to the database. Truncate the file if
+     * nothing else is left.
+     */
+    synchronized void acknowledge(Batch batch) throws IOException {
+        this.readPosition = batch.end;
+        this.pending -= batch.rows.size() + batch.skipped;
+        if (this.readPosition >= this.writePosition) {
+            this.channel.truncate(0L);
+            this.readPosition = 0L;
+            this.writePosition = 0L;
+            this.pending = 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.cavetale.itemmerchant;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Sales which have been taken from the player but not yet paid,
+ * logged or announced. See ItemMerchantPlugin#settle.
+ */
+final class SaleLedger {
+    final Map<Material, Entry> entries = new EnumMap<>(Material.class);
+    /** Custom items, by fingerprint. */
+    final Map<Long, Entry> items = new HashMap<>();
+    /** Time of the first unsettled sale, or 0. */
+    @Getter private long openedAt;
+    @Getter private int totalAmount;
+    @Getter private double totalMoney;
+
+    static final class Entry {
+        int amount;
+        double money;
+        // Custom items only
+        ItemPrices.Entry price;
+        ItemStack sample;
+    }
+
+    void add(Material mat, int amount, double money) {
+        add(this.entries.computeIfAbsent(mat, m -> new Entry()), amount, money);
+    }
+
+    void add(ItemPrices.Entry price, ItemStack sample, int amount, double money) {
+        Entry entry = this.items.get(price.fingerprint);
+        if (entry == null) {
+            entry = new Entry();
+            entry.price = price;
+            entry.sample = sample;
+            this.items.put(price.fingerprint, entry);
+        }
+        add(entry, amount, money);
+    }
+
+    private void add(Entry entry, int amount, double money) {
+        entry.amount += amount;
+        entry.money += money;
+        this.totalAmount += amount;
+        this.totalMoney += money;
+        if (this.openedAt == 0L) this.openedAt = System.currentTimeMillis();
+    }
+
+    boolean isEmpty() {
+        return this.entries.isEmpty() && this.items.isEmpty();
+    }
+
+    int getKindCount() {
+        return this.entries.size() + this.items.size();
+    }
+
+    void clear() {
+        this.entries.clear();
+        this.items.clear();
+        this.openedAt = 0L;
+        this.totalAmount = 0;
+        this.totalMoney = 0;
+    }
+}
@@ -0,0 +1,248 @@
+package com.cavetale.itemmerchant;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import lombok.Getter;
+import org.bukkit.Material;
+
+/**
+ * Hourly ring buffer of sale totals per material and per player, so
+ * that rankings over recent days can be answered without touching
+ * the database. Only accessed from the main thread.
+ */
+final class SalesWindow {
+    static final long HOUR = 60L * 60L * 1000L;
+    private final ItemMerchantPlugin plugin;
+    private final Bucket[] buckets;
+    /** Sales before this time come from the database, after it from record(). */
+    private final long cutoff;
+    @Getter private boolean seeded = false;
+
+    static final class Tally {
+        long amount;
+        double money;
+    }
+
+    static final class Bucket {
+        final long hour;
+        final Map<Material, Tally> materials = new EnumMap<>(Material.class);
+        /** Custom items, by the name logged in place of a material. */
+        final Map<String, Tally> items = new HashMap<>();
+        final Map<UUID, Tally> players = new HashMap<>();
+
+        Bucket(final long hour) {
+            this.hour = hour;
+        }
+    }
+
+    SalesWindow(final ItemMerchantPlugin plugin, final int days) {
+        if (days < 1) throw new IllegalArgumentException("days must be positive");
+        this.plugin = plugin;
+        this.buckets = new Bucket[days * 24];
+        this.cutoff = System.currentTimeMillis();
+    }
+
+    int getDays() {
+        return this.buckets.length / 24;
+    }
+
+    private Bucket bucketAt(long time) {
+        long hour = time / HOUR;
+        int index = (int) (hour % (long) this.buckets.length);
+        Bucket bucket = this.buckets[index];
+        if (bucket == null || bucket.hour < hour) {
+            bucket = new Bucket(hour);
+            this.buckets[index] = bucket;
+        } else if (bucket.hour > hour) {
+            return null; // Too old for the window
+        }
+        return bucket;
+    }
+
+    void record(UUID player, Material mat, long amount, double money, long time) {
+        Bucket bucket = bucketAt(time);
+        if (bucket == null) return;
+        Tally tally = bucket.materials.computeIfAbsent(mat, m -> new Tally());
+        tally.amount += amount;
+        tally.money += money;
+        tally = bucket.players.computeIfAbsent(player, u -> new Tally());
+        tally.amount += amount;
+        tally.money += money;
+    }
+
+    void record(UUID player, String item, long amount, double money, long time) {
+        Bucket bucket = bucketAt(time);
+        if (bucket == null) return;
+        Tally tally = bucket.items.computeIfAbsent(item, m -> new Tally());
+        tally.amount += amount;
+        tally.money += money;
+        tally = bucket.players.computeIfAbsent(player, u -> new Tally());
+        tally.amount += amount;
+        tally.money += money;
+    }
+
+    /**
+     * Answer a rank query from memory if it is fully covered by the
+     * window. The oldest hour is included in full, like in
+     * RankQuery.
+     * @return the result, or null if the database must be asked
+     */
+    RankQuery.Result rank(RankQuery query) {
+        if (!this.seeded) return null;
+        if (query.getSince() == null) return null;
+        long now = System.currentTimeMillis();
+        long currentHour = now / HOUR;
+        long firstHour = query.getSince().getTime() / HOUR;
+        if (firstHour <= currentHour - this.buckets.length) return null;
+        final boolean items;
+        switch (query.getWhat()) {
+        case ITEMS:
+            if (query.getPlayer() != null) return null;
+            items = true;
+            break;
+        case PLAYERS:
+            if (query.getMaterial() != null) return null;
+            items = false;
+            break;
+        default: return null;
+        }
+        Map<String, Tally> sums = new HashMap<>();
+        for (Bucket bucket : this.buckets) {
+            if (bucket == null || bucket.hour < firstHour || bucket.hour > currentHour) continue;
+            if (items) {
+                for (Map.Entry<Material, Tally> entry : bucket.materials.entrySet()) {
+                    String key = entry.getKey().name().toLowerCase();
+                    if (query.getMaterial() != null && !query.getMaterial().equals(key)) continue;
+                    add(sums, key, entry.getValue());
+                }
+                for (Map.Entry<String, Tally> entry : bucket.items.entrySet()) {
+                    if (query.getMaterial() != null && !query.getMaterial().equals(entry.getKey())) continue;
+                    add(sums, entry.getKey(), entry.getValue());
+                }
+            } else {
+                for (Map.Entry<UUID, Tally> entry : bucket.players.entrySet()) {
+                    if (query.getPlayer() != null && !query.getPlayer().equals(entry.getKey())) continue;
+                    add(sums, entry.getKey().toString(), entry.getValue());
+                }
+            }
+        }
+        List<RankQuery.Entry> rankings = new ArrayList<>(sums.size());
+        for (Map.Entry<String, Tally> entry : sums.entrySet()) {
+            Tally tally = entry.getValue();
+            if (tally.amount <= 0 || tally.money <= 0) continue;
+            rankings.add(new RankQuery.Entry(entry.getKey(), tally.amount, tally.money));
+        }
+        rankings.sort((a, b) -> Double.compare(b.money, a.money));
+        int from = Math.min(rankings.size(), query.getPage() * RankQuery.PAGE_SIZE);
+        int to = Math.min(rankings.size(), from + RankQuery.PAGE_SIZE);
+        return new RankQuery.Result(rankings.size(), query.getPage(), new ArrayList<>(rankings.subList(from, to)));
+    }
+
+    private static void add(Map<String, Tally> sums, String key, Tally tally) {
+        Tally sum = sums.computeIfAbsent(key, k -> new Tally());
+        sum.amount += tally.amount;
+        sum.money += tally.money;
+    }
+
+    // Seeding
+
+    static final class SeedRow {
+        long hour;
+        String material;
+        String player;
+        long amount;
+        double money;
+    }
+
+    /**
+     * Load hourly totals from the database on an async thread, then
+     * merge them in on the main thread.
+     */
+    void seedAsync() {
+        final long since = (this.cutoff / HOUR - this.buckets.length + 1) * HOUR;
+        this.plugin.runAsync(() -> {
+                final List<SeedRow> rows;
+                long start = System.nanoTime();
+                try {
+                    rows = fetchSeed(since);
+                    this.plugin.getMetrics().time(Metrics.Timing.DB_QUERY, start);
+                } catch (Exception e) {
+                    this.plugin.getLogger().warning("Seeding sales window: " + e.getMessage());
+                    return;
+                }
+                this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                        seed(rows);
+                        this.plugin.getLogger().info("Sales window seeded with " + rows.size() + " hourly totals");
+                    });
+            });
+    }
+
+    private List<SeedRow> fetchSeed(long since) throws SQLException {
+        String table = this.plugin.getSqlDatabase().getTable(SQLLog.class).getTableName();
+        Connection connection = this.plugin.getSqlDatabase().getConnection();
+        List<SeedRow> result = new ArrayList<>();
+        for (String column : List.of("material", "player")) {
+            // Group by wall clock hour and take the hour from the
+            // timestamp read back through JDBC, the way it was
+            // written, rather than UNIX_TIMESTAMP in the session
+            // time zone of the database.
+            String sql = "SELECT MIN(`time`), `" + column + "`, SUM(`amount`), SUM(`price`)"
+                + " FROM `" + table + "`"
+                + " WHERE `time` >= ? AND `time` < ?"
+                + " GROUP BY DATE(`time`), HOUR(`time`), `" + column + "`";
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setTimestamp(1, new Timestamp(since));
+                statement.setTimestamp(2, new Timestamp(this.cutoff));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        SeedRow row = new SeedRow();
+                        row.hour = resultSet.getTimestamp(1).getTime() / HOUR;
+                        if (column.equals("material")) {
+                            row.material = resultSet.getString(2);
+                        } else {
+                            row.player = resultSet.getString(2);
+                        }
+                        row.amount = resultSet.getLong(3);
+                        row.money = resultSet.getDouble(4);
+                        result.add(row);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    void seed(List<SeedRow> rows) {
+        for (SeedRow row : rows) {
+            Bucket bucket = bucketAt(row.hour * HOUR);
+            if (bucket == null) continue;
+            final Tally tally;
+            if (row.material != null) {
+                Material mat = Material.getMaterial(row.material.toUpperCase());
+                tally = mat != null
+                    ? bucket.materials.computeIfAbsent(mat, m -> new Tally())
+                    : bucket.items.computeIfAbsent(row.material, m -> new Tally());
+            } else {
+                final UUID uuid;
+                try {
+                    uuid = UUID.fromString(row.player);
+                } catch (IllegalArgumentException iae) {
+                    continue;
+                }
+                tally = bucket.players.computeIfAbsent(uuid, u -> new Tally());
+            }
+            tally.amount += row.amount;
+            tally.money += row.money;
+        }
+        this.seeded = true;
+    }
+}
@@ -0,0 +1,262 @@
+package com.cavetale.itemmerchant;
+
+import com.cavetale.money.Money;
+import java.util.Arrays;
+import lombok.Getter;
+import lombok.Setter;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import net.kyori.adventure.text.format.TextDecoration;
+import org.bukkit.Material;
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.inventory.InventoryView;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * One player's open sell menu. The chest stays open between sales;
+ * each refresh compares the new state of the player inventory with
+ * the last render and only rewrites the slots which changed.
+ */
+final class SellMenu {
+    static final int SIZE = 4 * 9;
+    static final int SELL_ALL_SLOT = 4 * 9 + 4;
+    private final ItemMerchantPlugin plugin;
+    @Getter private final Player player;
+    @Getter private final ChestMenu menu = new ChestMenu();
+    private final InventoryScan scan = new InventoryScan();
+    @Getter private final SaleLedger ledger = new SaleLedger();
+    // Last render, by menu slot
+    private Material[] slotMaterials = new Material[SIZE];
+    private long[] slotFingerprints = new long[SIZE];
+    private int[] slotAmounts = new int[SIZE];
+    private double[] slotPrices = new double[SIZE];
+    // Scratch space for the next render
+    private Material[] nextMaterials = new Material[SIZE];
+    private long[] nextFingerprints = new long[SIZE];
+    private int[] nextAmounts = new int[SIZE];
+    private double[] nextPrices = new double[SIZE];
+    private int sellAllAmount;
+    private double sellAllMoney;
+    private double sellAllRemaining;
+    private boolean refreshScheduled;
+    /** Queued in the MenuRepricer. */
+    @Getter @Setter private boolean repricePending;
+    @Getter private boolean closed;
+
+    SellMenu(final ItemMerchantPlugin plugin, final Player player) {
+        this.plugin = plugin;
+        this.player = player;
+        this.menu.createInventory(SIZE + 9, Component.text("Sell Items", NamedTextColor.DARK_PURPLE, TextDecoration.BOLD));
+        this.menu.setClickLimiter(plugin.getClickLimiter());
+        this.menu.setCloseHandler(event -> {
+                this.closed = true;
+                this.plugin.onSellMenuClose(this);
+            });
+    }
+
+    InventoryView open() {
+        return this.menu.open(this.player);
+    }
+
+    /**
+     * Rescan the player inventory and update the changed slots.
+     * @return the number of sellable items on display
+     */
+    int refresh() {
+        ItemPrices itemPrices = this.plugin.getItemPrices();
+        this.scan.scan(this.player.getInventory(), itemPrices);
+        PriceTable prices = this.plugin.getSalePrices();
+        for (int i = 0; i < SIZE; i += 1) this.nextMaterials[i] = null;
+        int totalItemCount = 0;
+        int totalAmount = 0;
+        double totalMoney = 0;
+        for (int group = 0; group < this.scan.getGroupCount(); group += 1) {
+            Material mat = this.scan.getMaterial(group);
+            long fingerprint = this.scan.getFingerprint(group);
+            double price = fingerprint == ItemFingerprint.NONE
+                ? prices.get(mat)
+                : itemPrices.getPrice(fingerprint);
+            if (price < 0.01) continue;
+            int slot = this.scan.getFirstSlot(group);
+            this.nextMaterials[slot] = mat;
+            this.nextFingerprints[slot] = fingerprint;
+            this.nextAmounts[slot] = this.scan.getAmount(group);
+            this.nextPrices[slot] = price;
+            totalItemCount += 1;
+            totalAmount += this.scan.getAmount(group);
+            totalMoney += price * (double) this.scan.getAmount(group);
+        }
+        for (int slot = 0; slot < SIZE; slot += 1) {
+            Material mat = this.nextMaterials[slot];
+            long fingerprint = this.nextFingerprints[slot];
+            if (mat == this.slotMaterials[slot]
+                && (mat == null
+                    || (fingerprint == this.slotFingerprints[slot]
+                        && this.nextAmounts[slot] == this.slotAmounts[slot]
+                        && this.nextPrices[slot] == this.slotPrices[slot]))) {
+                continue;
+            }
+            if (mat == null) {
+                this.menu.clearSlot(slot);
+            } else {
+                ItemStack icon = fingerprint == ItemFingerprint.NONE
+                    ? this.plugin.getMenuIconCache().get(mat, this.nextPrices[slot], this.nextAmounts[slot])
+                    : this.plugin.getMenuIconCache().get(this.scan.getSample(this.scan.getGroup(fingerprint)), fingerprint,
+                                                         this.nextPrices[slot], this.nextAmounts[slot]);
+                SellQuota quota = this.plugin.getSellQuota();
+                if (quota != null && fingerprint == ItemFingerprint.NONE) {
+                    double remaining = quota.getRemainingPerItem(this.player.getUniqueId(), mat);
+                    // Neither without a limit nor before the quota is loaded (NaN)
+                    if (remaining < Double.POSITIVE_INFINITY) MenuIconCache.addQuota(icon, remaining);
+                }
+                final int clickSlot = slot;
+                this.menu.setClick(slot, icon, event -> onClick(event, clickSlot));
+            }
+        }
+        Material[] swapMaterials = this.slotMaterials;
+        this.slotMaterials = this.nextMaterials;
+        this.nextMaterials = swapMaterials;
+        long[] swapFingerprints = this.slotFingerprints;
+        this.slotFingerprints = this.nextFingerprints;
+        this.nextFingerprints = swapFingerprints;
+        int[] swapAmounts = this.slotAmounts;
+        this.slotAmounts = this.nextAmounts;
+        this.nextAmounts = swapAmounts;
+        double[] swapPrices = this.slotPrices;
+        this.slotPrices = this.nextPrices;
+        this.nextPrices = swapPrices;
+        SellQuota quota = this.plugin.getSellQuota();
+        double remaining = quota != null
+            ? quota.getRemainingTotal(this.player.getUniqueId())
+            : Double.POSITIVE_INFINITY;
+        if (totalAmount != this.sellAllAmount || totalMoney != this.sellAllMoney
+            || Double.compare(remaining, this.sellAllRemaining) != 0) {
+            if (totalAmount == 0) {
+                this.menu.clearSlot(SELL_ALL_SLOT);
+            } else {
+                ItemStack icon = MenuIconCache.renderSellAll(totalAmount, totalMoney);
+                if (remaining < Double.POSITIVE_INFINITY) MenuIconCache.addQuota(icon, remaining);
+                this.menu.setClick(SELL_ALL_SLOT, icon, this::onClickSellAll);
+            }
+            this.sellAllAmount = totalAmount;
+            this.sellAllMoney = totalMoney;
+            this.sellAllRemaining = remaining;
+        }
+        this.menu.setValid(true);
+        return totalItemCount;
+    }
+
+    /**
+     * The current price of the item on display in a slot.
+     */
+    private double livePrice(int slot, PriceTable prices, ItemPrices itemPrices) {
+        long fingerprint = this.slotFingerprints[slot];
+        return fingerprint == ItemFingerprint.NONE
+            ? prices.get(this.slotMaterials[slot])
+            : itemPrices.getPrice(fingerprint);
+    }
+
+    /**
+     * Refresh if any price on display is out of date.
+     */
+    void reprice() {
+        PriceTable prices = this.plugin.getSalePrices();
+        ItemPrices itemPrices = this.plugin.getItemPrices();
+        for (int slot = 0; slot < SIZE; slot += 1) {
+            if (this.slotMaterials[slot] == null) continue;
+            if (livePrice(slot, prices, itemPrices) != this.slotPrices[slot]) {
+                refresh();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Render every slot again, for when something other than the
+     * inventory or the prices changed, such as the sell quota.
+     */
+    void redraw() {
+        Arrays.fill(this.slotMaterials, null);
+        this.sellAllAmount = -1;
+        refresh();
+    }
+
+    /**
+     * Pay for everything sold since the last settlement.
+     */
+    void settle() {
+        if (this.ledger.isEmpty()) return;
+        double money = this.ledger.getTotalMoney();
+        int amount = this.ledger.getTotalAmount();
+        this.plugin.settle(this.player, this.ledger, false);
+        if (this.player.isOnline()) {
+            this.player.sendMessage(Component.text("Received " + Money.format(money)
+                                                   + " for " + amount + " items.", NamedTextColor.GREEN));
+        }
+    }
+
+    void scheduleRefresh() {
+        if (this.refreshScheduled) return;
+        this.refreshScheduled = true;
+        this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                this.refreshScheduled = false;
+                if (this.closed) return;
+                long start = System.nanoTime();
+                if (refresh() == 0) {
+                    this.player.sendMessage(Component.text("You have no items to sell!", NamedTextColor.RED));
+                }
+                this.plugin.getMetrics().time(Metrics.Timing.OPEN_MENU, start);
+            });
+    }
+
+    void onClick(InventoryClickEvent event, int slot) {
+        long start = System.nanoTime();
+        Material mat = this.slotMaterials[slot];
+        if (mat == null) return;
+        long fingerprint = this.slotFingerprints[slot];
+        int group = fingerprint == ItemFingerprint.NONE
+            ? this.scan.getGroup(mat)
+            : this.scan.getGroup(fingerprint);
+        if (group < 0) return;
+        double price = this.slotPrices[slot];
+        if (livePrice(slot, this.plugin.getSalePrices(), this.plugin.getItemPrices()) != price) {
+            // Not repriced yet. Show the new price instead of selling at the old one.
+            this.player.sendMessage(Component.text("This price just changed. Please check again.", NamedTextColor.RED));
+            scheduleRefresh();
+            return;
+        }
+        if (price < 0.01) throw new IllegalArgumentException("Cannot sell " + mat + " for less than 0.01!");
+        int available = this.scan.getAmount(group);
+        boolean left = event.isLeftClick();
+        boolean right = event.isRightClick();
+        boolean shift = event.isShiftClick();
+        final int amount;
+        if (left && !shift) {
+            amount = 1;
+        } else if (right && !shift) {
+            amount = Math.min(mat.getMaxStackSize(), available);
+        } else if (shift) {
+            amount = available;
+        } else {
+            this.player.playSound(this.player.getEyeLocation(), Sound.UI_BUTTON_CLICK, SoundCategory.MASTER, 0.5f, 0.75f);
+            return;
+        }
+        this.menu.setValid(false);
+        this.plugin.sellItems(this.player, this.scan, group, amount, price, this.ledger);
+        scheduleRefresh();
+        this.plugin.getMetrics().time(Metrics.Timing.MENU_CLICK, start);
+    }
+
+    void onClickSellAll(InventoryClickEvent event) {
+        if (!event.isShiftClick()) {
+            this.player.playSound(this.player.getEyeLocation(), Sound.UI_BUTTON_CLICK, SoundCategory.MASTER, 0.5f, 0.75f);
+            return;
+        }
+        this.menu.setValid(false);
+        this.plugin.sellAll(this.player, this.scan, this.ledger);
+        scheduleRefresh();
+    }
+}
@@ -0,0 +1,221 @@
+package com.cavetale.itemmerchant;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.bukkit.Material;
+
+/**
+ * Daily limits on the money each player may earn, in total and per
+ * material. Counters live in memory, indexed by player and material,
+ * so every check is O(1). A player's counter is created when the sell
+ * menu opens, or by the first sale of the day, and filled in on an
+ * async thread from today's sale logs, including those still waiting
+ * in the log queue or journal. Until that load succeeds, the player
+ * cannot sell.
+ * Counters are kept for the rest of the day, even when the player
+ * quits, and dropped when the day changes. Main thread only.
+ */
+final class SellQuota {
+    static final long RETRY_DELAY = 10000L;
+    private final ItemMerchantPlugin plugin;
+    /** Zero means no limit. */
+    private final double dailyTotal;
+    /** Zero means no limit. */
+    private final double dailyPerItem;
+    private final Map<UUID, Counter> counters = new HashMap<>();
+    private long day;
+
+    enum State {
+        LOADING,
+        LOADED,
+        FAILED;
+    }
+
+    static final class Counter {
+        State state = State.LOADING;
+        /** Epoch millis after which a failed load is retried. */
+        long retryAfter;
+        double total;
+        /** Only materials sold today, or null without a per item limit. */
+        Map<Material, Double> materials;
+    }
+
+    SellQuota(final ItemMerchantPlugin plugin, final double dailyTotal, final double dailyPerItem) {
+        if (dailyTotal < 0) throw new IllegalArgumentException("dailyTotal cannot be negative");
+        if (dailyPerItem < 0) throw new IllegalArgumentException("dailyPerItem cannot be negative");
+        this.plugin = plugin;
+        this.dailyTotal = dailyTotal;
+        this.dailyPerItem = dailyPerItem;
+        this.day = today();
+    }
+
+    static long today() {
+        return LocalDate.now().toEpochDay();
+    }
+
+    /**
+     * @return the counter of a player, or null
+     */
+    private Counter get(UUID player) {
+        long today = today();
+        if (today != this.day) {
+            // Loads still running for yesterday are ignored, see load.
+            this.day = today;
+            this.counters.clear();
+        }
+        return this.counters.get(player);
+    }
+
+    /**
+     * Make sure the counter of a player is loaded before a sale,
+     * starting a load or a retry if needed.
+     * @return true if sales can be checked now, false if the player
+     * has to wait
+     */
+    boolean prepare(UUID player) {
+        Counter counter = get(player);
+        if (counter == null) {
+            counter = new Counter();
+            if (this.dailyPerItem > 0) counter.materials = new HashMap<>();
+            this.counters.put(player, counter);
+            load(player, counter);
+            return false;
+        }
+        switch (counter.state) {
+        case LOADED: return true;
+        case FAILED:
+            if (System.currentTimeMillis() >= counter.retryAfter) {
+                counter.state = State.LOADING;
+                load(player, counter);
+            }
+            return false;
+        case LOADING:
+        default: return false;
+        }
+    }
+
+    /**
+     * Money the player may still earn today, from one material or in
+     * total. Call prepare first.
+     * @param mat the material, or null for custom items which only
+     * count toward the total
+     * @return the remaining money, infinity without a limit, or NaN if
+     * not known yet
+     */
+    double getRemaining(UUID player, Material mat) {
+        return Math.min(getRemainingTotal(player), getRemainingPerItem(player, mat));
+    }
+
+    /**
+     * Like getRemaining, but only the total. Never starts a load, so
+     * it may be used to render menus.
+     */
+    double getRemainingTotal(UUID player) {
+        if (this.dailyTotal <= 0) return Double.POSITIVE_INFINITY;
+        Counter counter = get(player);
+        if (counter == null || counter.state != State.LOADED) return Double.NaN;
+        return Math.max(0.0, this.dailyTotal - counter.total);
+    }
+
+    /**
+     * Like getRemaining, but only the per item limit. Never starts a
+     * load, so it may be used to render menus.
+     */
+    double getRemainingPerItem(UUID player, Material mat) {
+        if (this.dailyPerItem <= 0 || mat == null) return Double.POSITIVE_INFINITY;
+        Counter counter = get(player);
+        if (counter == null || counter.state != State.LOADED) return Double.NaN;
+        return Math.max(0.0, this.dailyPerItem - counter.materials.getOrDefault(mat, 0.0));
+    }
+
+    /**
+     * The number of items at a price which fit into the remaining
+     * quota, at most amount. Zero unless prepare returned true.
+     */
+    int cap(UUID player, Material mat, int amount, double price) {
+        double remaining = getRemaining(player, mat);
+        if (Double.isNaN(remaining)) return 0;
+        if (remaining == Double.POSITIVE_INFINITY) return amount;
+        return (int) Math.min((long) amount, (long) Math.floor(remaining / price + 0.000001));
+    }
+
+    void record(UUID player, Material mat, double money) {
+        Counter counter = get(player);
+        if (counter == null) return;
+        counter.total += money;
+        if (counter.materials != null && mat != null) counter.materials.merge(mat, money, Double::sum);
+    }
+
+    /**
+     * Add up today's sales before now, from the database and the log
+     * queue, and add them to the counter unless the day changed
+     * meanwhile. Sales after now are counted by record.
+     */
+    private void load(UUID player, Counter counter) {
+        final long loadDay = this.day;
+        final long since = LocalDate.ofEpochDay(loadDay).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        final long until = System.currentTimeMillis();
+        final SQLLogQueue logQueue = this.plugin.getLogQueue();
+        this.plugin.runAsync(() -> {
+                Map<String, Double> result = null;
+                long start = System.nanoTime();
+                try {
+                    result = logQueue.readWithPending(player, pending -> fetch(player, since, until, pending));
+                    this.plugin.getMetrics().time(Metrics.Timing.DB_QUERY, start);
+                } catch (Exception e) {
+                    this.plugin.getLogger().warning("Loading sell quota of " + player + ": " + e.getMessage());
+                }
+                final Map<String, Double> sums = result;
+                this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                        if (get(player) != counter || this.day != loadDay) return;
+                        if (sums == null) {
+                            counter.state = State.FAILED;
+                            counter.retryAfter = System.currentTimeMillis() + RETRY_DELAY;
+                            return;
+                        }
+                        for (Map.Entry<String, Double> entry : sums.entrySet()) {
+                            counter.total += entry.getValue();
+                            if (counter.materials == null) continue;
+                            Material mat = Material.getMaterial(entry.getKey().toUpperCase());
+                            if (mat != null) counter.materials.merge(mat, entry.getValue(), Double::sum);
+                        }
+                        counter.state = State.LOADED;
+                        this.plugin.onSellQuotaLoaded(player);
+                    });
+            });
+    }
+
+    private Map<String, Double> fetch(UUID player, long since, long until, List<SQLLog> pending) throws SQLException {
+        String table = this.plugin.getSqlDatabase().getTable(SQLLog.class).getTableName();
+        Connection connection = this.plugin.getSqlDatabase().getConnection();
+        Map<String, Double> result = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT `material`, SUM(`price`)"
+                                                                       + " FROM `" + table + "`"
+                                                                       + " WHERE `player` = ? AND `time` >= ? AND `time` < ?"
+                                                                       + " GROUP BY `material`")) {
+            statement.setString(1, player.toString());
+            statement.setTimestamp(2, new Timestamp(since));
+            statement.setTimestamp(3, new Timestamp(until));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    result.merge(resultSet.getString(1), resultSet.getDouble(2), Double::sum);
+                }
+            }
+        }
+        for (SQLLog row : pending) {
+            long time = row.getTime().getTime();
+            if (time < since || time >= until) continue;
+            result.merge(row.getMaterial(), row.getPrice(), Double::sum);
+        }
+        return result;
+    }
+}
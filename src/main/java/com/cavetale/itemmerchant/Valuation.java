@@ -0,0 +1,34 @@
+package com.cavetale.itemmerchant;
+
+import java.util.List;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Material;
+
+/**
+ * The result of MerchantValuation#value: one line per kind of
+ * sellable item, and the totals.
+ */
+@Getter @RequiredArgsConstructor
+public final class Valuation {
+    private final List<Line> lines;
+    /** Sellable items. */
+    private final int amount;
+    private final double money;
+    /** Items which cannot be sold. */
+    private final int unsellable;
+
+    @Getter @RequiredArgsConstructor
+    public static final class Line {
+        /** The material name, or the name of a custom item. */
+        private final String name;
+        private final Material material;
+        private final boolean custom;
+        private final int amount;
+        private final double price;
+
+        public double getMoney() {
+            return this.price * (double) this.amount;
+        }
+    }
+}
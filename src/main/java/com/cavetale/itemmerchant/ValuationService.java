@@ -0,0 +1,82 @@
+package com.cavetale.itemmerchant;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * MerchantValuation backed by the plugin's price tables. These are
+ * immutable and replaced as a whole, so reading them needs no lock.
+ * Items are told apart by InventoryScan, exactly like in a sale.
+ */
+@RequiredArgsConstructor
+final class ValuationService implements MerchantValuation {
+    private final ItemMerchantPlugin plugin;
+
+    @Override
+    public double getPrice(Material material) {
+        return Math.max(0.0, this.plugin.getSalePrices().get(material));
+    }
+
+    @Override
+    public double getPrice(ItemStack item) {
+        return price(item, this.plugin.getSalePrices(), this.plugin.getItemPrices());
+    }
+
+    private static double price(ItemStack item, PriceTable prices, ItemPrices itemPrices) {
+        if (item == null || item.getType() == Material.AIR) return 0.0;
+        if (InventoryScan.isPlain(item)) return Math.max(0.0, prices.get(item.getType()));
+        long fingerprint = InventoryScan.getPricedFingerprint(item, itemPrices);
+        return fingerprint != ItemFingerprint.NONE ? itemPrices.getPrice(fingerprint) : 0.0;
+    }
+
+    @Override
+    public Valuation value(Collection<? extends ItemStack> items) {
+        PriceTable prices = this.plugin.getSalePrices();
+        ItemPrices itemPrices = this.plugin.getItemPrices();
+        int[] amounts = new int[PriceTable.MATERIALS.length];
+        Map<Long, int[]> customAmounts = new HashMap<>();
+        int unsellable = 0;
+        for (ItemStack item : items) {
+            if (item == null || item.getType() == Material.AIR) continue;
+            Material mat = item.getType();
+            if (InventoryScan.isPlain(item)) {
+                if (prices.get(mat) >= 0.01) {
+                    amounts[mat.ordinal()] += item.getAmount();
+                    continue;
+                }
+            } else {
+                long fingerprint = InventoryScan.getPricedFingerprint(item, itemPrices);
+                if (fingerprint != ItemFingerprint.NONE && itemPrices.getPrice(fingerprint) >= 0.01) {
+                    customAmounts.computeIfAbsent(fingerprint, f -> new int[1])[0] += item.getAmount();
+                    continue;
+                }
+            }
+            unsellable += item.getAmount();
+        }
+        List<Valuation.Line> lines = new ArrayList<>();
+        int totalAmount = 0;
+        double totalMoney = 0.0;
+        for (int i = 0; i < amounts.length; i += 1) {
+            if (amounts[i] == 0) continue;
+            Material mat = PriceTable.MATERIALS[i];
+            Valuation.Line line = new Valuation.Line(mat.name().toLowerCase(), mat, false, amounts[i], prices.get(i));
+            lines.add(line);
+            totalAmount += line.getAmount();
+            totalMoney += line.getMoney();
+        }
+        for (Map.Entry<Long, int[]> it : customAmounts.entrySet()) {
+            ItemPrices.Entry entry = itemPrices.get(it.getKey());
+            Valuation.Line line = new Valuation.Line(entry.name, entry.material, true, it.getValue()[0], entry.price);
+            lines.add(line);
+            totalAmount += line.getAmount();
+            totalMoney += line.getMoney();
+        }
+        return new Valuation(lines, totalAmount, totalMoney, unsellable);
+    }
+}
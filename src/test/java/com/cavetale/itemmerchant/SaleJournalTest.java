@@ -0,0 +1,186 @@
+package com.cavetale.itemmerchant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.UUID;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class SaleJournalTest {
+    static final UUID PLAYER = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    static final Logger LOGGER = Logger.getLogger("SaleJournalTest");
+    @TempDir File folder;
+
+    private File journalFile() {
+        return new File(this.folder, "journal.dat");
+    }
+
+    private SaleJournal openJournal() throws IOException {
+        SaleJournal journal = new SaleJournal(journalFile(), LOGGER);
+        journal.open();
+        return journal;
+    }
+
+    private static SQLLog row(String material, int amount, double price) {
+        SQLLog row = new SQLLog(PLAYER, material, amount, price);
+        row.setTime(new Date(1000000L + amount));
+        return row;
+    }
+
+    /**
+     * Size of a record with a material of this many ASCII letters.
+     */
+    private static long recordSize(String material) {
+        return SaleJournal.HEADER + SaleJournal.FIXED + material.length();
+    }
+
+    private long quarantinedBytes() {
+        long result = 0L;
+        for (File file : this.folder.listFiles()) {
+            if (file.getName().endsWith(".corrupt")) result += file.length();
+        }
+        return result;
+    }
+
+    @Test
+    void replaysRecordsAfterRestart() throws IOException {
+        SaleJournal journal = openJournal();
+        journal.append(row("diamond", 1, 10.0));
+        journal.append(row("stone", 64, 0.5));
+        journal.append(row("custom_sword", 2, 3.25));
+        journal.close();
+        SaleJournal reopened = new SaleJournal(journalFile(), LOGGER);
+        assertEquals(3, reopened.open());
+        SaleJournal.Batch batch = reopened.read(10);
+        assertEquals(3, batch.rows.size());
+        assertEquals(0, batch.skipped);
+        SQLLog second = batch.rows.get(1);
+        assertEquals(PLAYER, second.getPlayer());
+        assertEquals("stone", second.getMaterial());
+        assertEquals(64, second.getAmount());
+        assertEquals(0.5, second.getPrice());
+        assertEquals(1000064L, second.getTime().getTime());
+        assertEquals("custom_sword", batch.rows.get(2).getMaterial());
+        reopened.close();
+    }
+
+    @Test
+    void cutsOffTornTail() throws IOException {
+        SaleJournal journal = openJournal();
+        journal.append(row("diamond", 1, 10.0));
+        journal.append(row("stone", 2, 1.0));
+        journal.close();
+        long size = journalFile().length();
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw")) {
+            raf.seek(size);
+            raf.writeInt(SaleJournal.FIXED + 4);
+            raf.writeLong(42L);
+        }
+        SaleJournal reopened = new SaleJournal(journalFile(), LOGGER);
+        assertEquals(2, reopened.open());
+        assertEquals(size, journalFile().length());
+        assertEquals(0L, quarantinedBytes());
+        assertEquals(2, reopened.read(10).rows.size());
+        reopened.close();
+    }
+
+    @Test
+    void acknowledgeTruncatesWhenEmpty() throws IOException {
+        SaleJournal journal = openJournal();
+        journal.append(row("diamond", 1, 10.0));
+        journal.append(row("stone", 2, 1.0));
+        journal.append(row("dirt", 3, 1.0));
+        SaleJournal.Batch first = journal.read(2);
+        assertEquals(2, first.rows.size());
+        journal.acknowledge(first);
+        assertEquals(1, journal.getPending());
+        assertEquals(recordSize("diamond") + recordSize("stone"), journal.getReadPosition());
+        assertTrue(journalFile().length() > 0L);
+        SaleJournal.Batch second = journal.read(2);
+        assertEquals(1, second.rows.size());
+        assertEquals("dirt", second.rows.get(0).getMaterial());
+        journal.acknowledge(second);
+        assertEquals(0, journal.getPending());
+        assertEquals(0L, journal.getReadPosition());
+        assertEquals(0L, journalFile().length());
+        assertTrue(journal.read(2).isEmpty());
+        journal.append(row("stone", 4, 1.0));
+        assertEquals(recordSize("stone"), journalFile().length());
+        journal.close();
+    }
+
+    @Test
+    void quarantinesBrokenLengthOnOpen() throws IOException {
+        SaleJournal journal = openJournal();
+        journal.append(row("diamond", 1, 10.0));
+        journal.append(row("stone", 2, 1.0));
+        journal.append(row("dirt", 3, 1.0));
+        journal.close();
+        long size = journalFile().length();
+        long broken = recordSize("diamond");
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw")) {
+            raf.seek(broken);
+            raf.writeInt(1000000);
+        }
+        SaleJournal reopened = new SaleJournal(journalFile(), LOGGER);
+        assertEquals(1, reopened.open());
+        assertEquals(broken, journalFile().length());
+        assertEquals(size - broken, quarantinedBytes());
+        SaleJournal.Batch batch = reopened.read(10);
+        assertEquals(1, batch.rows.size());
+        reopened.acknowledge(batch);
+        assertEquals(0L, journalFile().length());
+        reopened.close();
+    }
+
+    @Test
+    void quarantinesBrokenLengthOnRead() throws IOException {
+        SaleJournal journal = openJournal();
+        journal.append(row("diamond", 1, 10.0));
+        journal.append(row("stone", 2, 1.0));
+        long broken = recordSize("diamond");
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw")) {
+            raf.seek(broken);
+            raf.writeInt(3);
+        }
+        SaleJournal.Batch batch = journal.read(10);
+        assertEquals(1, batch.rows.size());
+        assertEquals(broken, batch.end);
+        assertEquals(1, journal.getPending());
+        assertEquals(recordSize("stone"), quarantinedBytes());
+        journal.acknowledge(batch);
+        assertEquals(0, journal.getPending());
+        assertEquals(0L, journalFile().length());
+        journal.close();
+    }
+
+    @Test
+    void skipsInvalidRecord() throws IOException {
+        SaleJournal journal = openJournal();
+        journal.append(row("diamond", 1, 10.0));
+        journal.append(row("stone", 2, 1.0));
+        journal.append(row("dirt", 3, 1.0));
+        journal.close();
+        // Zero out the amount of the second record.
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw")) {
+            raf.seek(recordSize("diamond") + SaleJournal.HEADER + 8 + 8 + 8);
+            raf.writeInt(0);
+        }
+        SaleJournal reopened = new SaleJournal(journalFile(), LOGGER);
+        assertEquals(3, reopened.open());
+        SaleJournal.Batch batch = reopened.read(10);
+        assertEquals(2, batch.rows.size());
+        assertEquals(1, batch.skipped);
+        assertEquals("dirt", batch.rows.get(1).getMaterial());
+        reopened.acknowledge(batch);
+        assertEquals(0, reopened.getPending());
+        assertEquals(0L, journalFile().length());
+        assertEquals(0L, quarantinedBytes());
+        reopened.close();
+    }
+}